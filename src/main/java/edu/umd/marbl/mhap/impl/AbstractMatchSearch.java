@@ -29,9 +29,9 @@
  */
 package edu.umd.marbl.mhap.impl;
 
-import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -41,8 +41,9 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
-import edu.umd.marbl.mhap.utils.ReadBuffer;
-import edu.umd.marbl.mhap.utils.Utils;
+import edu.umd.marbl.mhap.sketch.SketchWorkspace;
+import edu.umd.marbl.mhap.utils.AsyncOutputWriter;
+import edu.umd.marbl.mhap.utils.OutputBuffer;
 
 public abstract class AbstractMatchSearch
 {
@@ -53,8 +54,12 @@ public abstract class AbstractMatchSearch
 	private final boolean storeResults;
 
 	public final static int NUM_ELEMENTS_PER_OUTPUT = 20000;
-	protected final static BufferedWriter STD_OUT_BUFFER = new BufferedWriter(new OutputStreamWriter(System.out),
-			Utils.BUFFER_BYTE_SIZE);
+	private final static int OUTPUT_BUFFER_SIZE = 1<<20;
+	private final static int OUTPUT_QUEUE_SIZE = 16;
+	
+	//the worker threads format into their own buffers, and only hand the full buffers to the writer thread
+	protected final static AsyncOutputWriter STD_OUT_WRITER = new AsyncOutputWriter(new FileOutputStream(FileDescriptor.out).getChannel(), 
+			OUTPUT_QUEUE_SIZE);
 
 	public AbstractMatchSearch(int numThreads, boolean storeResults)
 	{
@@ -66,12 +71,16 @@ public abstract class AbstractMatchSearch
 
 	protected void addData(final SequenceSketchStreamer data, boolean doReverseCompliment)
 	{
-		// figure out number of cores
-		ExecutorService execSvc = Executors.newFixedThreadPool(this.numThreads);
+		final boolean fwdOnly = !doReverseCompliment;
+
+		// figure out number of cores, the sketching threads of the streamer take their share
+		final int numConsumers = data.getConsumerThreads(this.numThreads);
+		ExecutorService execSvc = Executors.newFixedThreadPool(numConsumers);
 
 		final AtomicInteger counter = new AtomicInteger();
-		for (int iter = 0; iter < this.numThreads; iter++)
+		for (int iter = 0; iter < numConsumers; iter++)
 		{
+			final int thread = iter;
 			Runnable task = new Runnable()
 			{
 				@Override
@@ -79,17 +88,17 @@ public abstract class AbstractMatchSearch
 				{
 					try
 					{
-						ReadBuffer buf = new ReadBuffer();
-						SequenceSketch seqHashes = data.dequeue(!doReverseCompliment, buf);
+						SketchWorkspace workspace = new SketchWorkspace();
+						SequenceSketch seqHashes = data.dequeue(fwdOnly, workspace);
 						while (seqHashes != null)
 						{
-							addSequence(seqHashes);
+							addSequence(seqHashes, thread, numConsumers);
 
 							int currCount = counter.incrementAndGet();
 							if (currCount % 5000 == 0)
 								System.err.println("Current # sequences stored: " + currCount + "...");
 
-							seqHashes = data.dequeue(false, buf);
+							seqHashes = data.dequeue(fwdOnly, workspace);
 						}
 					}
 					catch (IOException e)
@@ -116,7 +125,13 @@ public abstract class AbstractMatchSearch
 		}
 	}
 
-	protected abstract boolean addSequence(SequenceSketch seqHashes);
+	/**
+	 * @param thread
+	 *            the index of the storing thread, so each thread can own part of the state
+	 * @param numThreads
+	 *            the number of storing threads
+	 */
+	protected abstract boolean addSequence(SequenceSketch seqHashes, int thread, int numThreads);
 
 	public ArrayList<MatchResult> findMatches()
 	{
@@ -137,6 +152,8 @@ public abstract class AbstractMatchSearch
 				public void run()
 				{
 					List<MatchResult> localMatches = new ArrayList<MatchResult>();
+					OutputBuffer output = new OutputBuffer(OUTPUT_BUFFER_SIZE);
+					SearchWorkspace searchWorkspace = new SearchWorkspace();
 
 					// get next sequence
 					SequenceId nextSequence = seqList.poll();
@@ -146,7 +163,7 @@ public abstract class AbstractMatchSearch
 						SequenceSketch sequenceHashes = getStoredSequenceHash(nextSequence);
 
 						// only search the forward sequences
-						localMatches.addAll(findMatches(sequenceHashes, true));
+						localMatches.addAll(findMatches(sequenceHashes, true, searchWorkspace));
 
 						// record search
 						AbstractMatchSearch.this.sequencesSearched.getAndIncrement();
@@ -169,7 +186,7 @@ public abstract class AbstractMatchSearch
 								}
 							}
 							else
-								outputResults(localMatches);
+								outputResults(localMatches, output, nextSequence == null);
 
 							localMatches.clear();
 						}
@@ -198,18 +215,19 @@ public abstract class AbstractMatchSearch
 		return combinedList;
 	}
 
-	protected abstract List<MatchResult> findMatches(SequenceSketch hashes, boolean toSelf);
+	protected abstract List<MatchResult> findMatches(SequenceSketch hashes, boolean toSelf, SearchWorkspace workspace);
 
 	public ArrayList<MatchResult> findMatches(final SequenceSketchStreamer data) throws IOException
 	{
-		// figure out number of cores
-		ExecutorService execSvc = Executors.newFixedThreadPool(this.numThreads);
+		// figure out number of cores, the sketching threads of the streamer take their share
+		final int numConsumers = data.getConsumerThreads(this.numThreads);
+		ExecutorService execSvc = Executors.newFixedThreadPool(numConsumers);
 
 		// allocate the storage and get the list of valeus
 		final ArrayList<MatchResult> combinedList = new ArrayList<MatchResult>();
 
 		// for each thread create a task
-		for (int iter = 0; iter < this.numThreads; iter++)
+		for (int iter = 0; iter < numConsumers; iter++)
 		{
 			Runnable task = new Runnable()
 			{
@@ -217,23 +235,25 @@ public abstract class AbstractMatchSearch
 				public void run()
 				{
 					List<MatchResult> localMatches = new ArrayList<MatchResult>();
+					OutputBuffer output = new OutputBuffer(OUTPUT_BUFFER_SIZE);
 
 					try
 					{
-						ReadBuffer buf = new ReadBuffer();
+						SketchWorkspace workspace = new SketchWorkspace();
+						SearchWorkspace searchWorkspace = new SearchWorkspace();
 
-						SequenceSketch sequenceHashes = data.dequeue(true, buf);
+						SequenceSketch sequenceHashes = data.dequeue(true, workspace);
 
 						while (sequenceHashes != null)
 						{
 							// only search the forward sequences
-							localMatches.addAll(findMatches(sequenceHashes, false));
+							localMatches.addAll(findMatches(sequenceHashes, false, searchWorkspace));
 
 							// record search
 							AbstractMatchSearch.this.sequencesSearched.getAndIncrement();
 
 							// get the sequence hashes
-							sequenceHashes = data.dequeue(true, buf);
+							sequenceHashes = data.dequeue(true, workspace);
 
 							// output stored results
 							if (sequenceHashes == null || localMatches.size() >= NUM_ELEMENTS_PER_OUTPUT)
@@ -250,7 +270,7 @@ public abstract class AbstractMatchSearch
 									}
 								}
 								else
-									outputResults(localMatches);
+									outputResults(localMatches, output, sequenceHashes == null);
 
 								localMatches.clear();
 							}
@@ -288,7 +308,7 @@ public abstract class AbstractMatchSearch
 	{
 		try
 		{
-			STD_OUT_BUFFER.flush();
+			STD_OUT_WRITER.flush();
 		}
 		catch (IOException e)
 		{
@@ -313,27 +333,30 @@ public abstract class AbstractMatchSearch
 
 	public abstract SequenceSketch getStoredSequenceHash(SequenceId id);
 
-	protected void outputResults(List<MatchResult> matches)
+	/**
+	 * Formats the matches into the buffer of the thread, which is handed to the writer thread once full.
+	 * 
+	 * @param last
+	 *            if true, the buffer is handed over also when not full
+	 */
+	protected void outputResults(List<MatchResult> matches, OutputBuffer buffer, boolean last)
 	{
-		if (this.storeResults || matches.isEmpty())
+		if (this.storeResults)
 			return;
 
-		try
+		for (MatchResult currResult : matches)
+			currResult.appendTo(buffer);
+		
+		if (last || buffer.length() >= OUTPUT_BUFFER_SIZE)
 		{
-			synchronized (STD_OUT_BUFFER)
+			try
 			{
-				for (MatchResult currResult : matches)
-				{
-					STD_OUT_BUFFER.write(currResult.toString());
-					STD_OUT_BUFFER.newLine();
-				}
-
-				STD_OUT_BUFFER.flush();
+				STD_OUT_WRITER.write(buffer);
+			}
+			catch (IOException e)
+			{
+				throw new MhapRuntimeException(e);
 			}
-		}
-		catch (IOException e)
-		{
-			throw new MhapRuntimeException(e);
 		}
 	}
 
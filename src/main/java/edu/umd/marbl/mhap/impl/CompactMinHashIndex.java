@@ -0,0 +1,184 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.impl;
+
+import it.unimi.dsi.fastutil.HashCommon;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Inverted index of the min-hashes of a fixed set of sequences, stored as flat primitive arrays. For every hash
+ * function, or every band when banding, the distinct min-hash values are kept in an open-addressing table, and the ordinals of the sequences
+ * sharing the value at a slot are stored contiguously in a postings array between offsets[slot] and
+ * offsets[slot+1]. Empty slots have an empty range. Built in two passes, the first counting the size of every
+ * bucket and the second filling them.
+ */
+public final class CompactMinHashIndex
+{
+	private final int[][] keys;
+	private final int[] masks;
+	private final int[][] offsets;
+	private final int[][] postings;
+	
+	public CompactMinHashIndex(final int[][] sequenceKeys, final int numSketches, int numTables, int numThreads)
+	{
+		this.keys = new int[numTables][];
+		this.masks = new int[numTables];
+		this.offsets = new int[numTables][];
+		this.postings = new int[numTables][];
+		
+		//the hash functions are independent, so build them in parallel
+		final AtomicInteger nextTable = new AtomicInteger();
+		ExecutorService execSvc = Executors.newFixedThreadPool(numThreads);
+		for (int iter = 0; iter < numThreads; iter++)
+		{
+			execSvc.execute(() -> {
+				int table;
+				while ((table = nextTable.getAndIncrement()) < this.keys.length)
+					buildTable(table, sequenceKeys, numSketches);
+			});
+		}
+
+		execSvc.shutdown();
+		try
+		{
+			execSvc.awaitTermination(365L, TimeUnit.DAYS);
+		}
+		catch (InterruptedException e)
+		{
+			execSvc.shutdownNow();
+			throw new MhapRuntimeException("Unable to finish all tasks.");
+		}
+	}
+	
+	private void buildTable(int table, int[][] sequenceKeys, int numSketches)
+	{
+		final int tableSize = HashCommon.arraySize(Math.max(1, numSketches), .75f);
+		final int mask = tableSize-1;
+		final int[] tableKeys = new int[tableSize];
+		final int[] counts = new int[tableSize];
+		
+		//first pass, count the size of every bucket
+		for (int ordinal = 0; ordinal < numSketches; ordinal++)
+		{
+			int hash = sequenceKeys[ordinal][table];
+			int slot = HashCommon.mix(hash) & mask;
+			while (counts[slot]!=0 && tableKeys[slot]!=hash)
+				slot = (slot+1) & mask;
+			
+			tableKeys[slot] = hash;
+			counts[slot]++;
+		}
+		
+		final int[] tableOffsets = new int[tableSize+1];
+		for (int slot = 0; slot < tableSize; slot++)
+			tableOffsets[slot+1] = tableOffsets[slot]+counts[slot];
+		
+		//second pass, fill the buckets in ordinal order, the counts become the fill positions
+		final int[] tablePostings = new int[numSketches];
+		System.arraycopy(tableOffsets, 0, counts, 0, tableSize);
+		for (int ordinal = 0; ordinal < numSketches; ordinal++)
+		{
+			int hash = sequenceKeys[ordinal][table];
+			int slot = HashCommon.mix(hash) & mask;
+			while (tableKeys[slot]!=hash || tableOffsets[slot+1]==tableOffsets[slot])
+				slot = (slot+1) & mask;
+			
+			tablePostings[counts[slot]++] = ordinal;
+		}
+		
+		this.keys[table] = tableKeys;
+		this.masks[table] = mask;
+		this.offsets[table] = tableOffsets;
+		this.postings[table] = tablePostings;
+	}
+	
+	/**
+	 * @return the slot of the bucket with the given min-hash, or -1 if no sequence has it
+	 */
+	public int findBucket(int table, int hash)
+	{
+		final int[] tableKeys = this.keys[table];
+		final int[] tableOffsets = this.offsets[table];
+		final int mask = this.masks[table];
+		
+		int slot = HashCommon.mix(hash) & mask;
+		while (tableOffsets[slot+1]!=tableOffsets[slot])
+		{
+			if (tableKeys[slot]==hash)
+				return slot;
+			
+			slot = (slot+1) & mask;
+		}
+		
+		return -1;
+	}
+	
+	public int getBucketEnd(int table, int slot)
+	{
+		return this.offsets[table][slot+1];
+	}
+	
+	int[] getKeys(int table)
+	{
+		return this.keys[table];
+	}
+	
+	int[] getOffsets(int table)
+	{
+		return this.offsets[table];
+	}
+	
+	public int getBucketStart(int table, int slot)
+	{
+		return this.offsets[table][slot];
+	}
+	
+	public int[] getPostings(int table)
+	{
+		return this.postings[table];
+	}
+	
+	public int numTables()
+	{
+		return this.keys.length;
+	}
+	
+	public long sizeInBytes()
+	{
+		long size = 0L;
+		for (int table = 0; table < this.keys.length; table++)
+			size += 4L*(this.keys[table].length+this.offsets[table].length+this.postings[table].length);
+		
+		return size;
+	}
+}
@@ -29,31 +29,30 @@
  */
 package edu.umd.marbl.mhap.impl;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.util.Locale;
+import java.util.ArrayList;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicLong;
 
-import edu.umd.marbl.mhap.utils.Utils;
-
+/**
+ * Sequences of a FASTA or FASTQ file. The file is split into chunks of records by a SequenceFileChunker, and the
+ * threads calling dequeue() parse the chunks in parallel.
+ */
 public class FastaData implements Cloneable
 {
-	private final BufferedReader fileReader;
+	private final SequenceFileChunker chunker;
 	private final long offset;
-	private String lastLine;
 	private AtomicLong numberProcessed;
-	private boolean readFullFile;
+	private volatile boolean readFullFile;
 	// length of sequences loaded
 	private final ConcurrentLinkedQueue<Sequence> sequenceList;
 
-	private static final String[] fastaSuffix = { "fna", "contigs", "contig", "final", "fasta", "fa" };
+	private static final String[] fastaSuffix = { "fna", "contigs", "contig", "final", "fasta", "fa", "fastq", "fq" };
 
 	private FastaData(ConcurrentLinkedQueue<Sequence> seqList)
 	{
 		this.sequenceList = new ConcurrentLinkedQueue<Sequence>(seqList);
-		this.fileReader = null;
-		this.lastLine = null;
+		this.chunker = null;
 		this.readFullFile = true;
 		this.numberProcessed = new AtomicLong(this.sequenceList.size());
 		this.offset = 0;
@@ -63,7 +62,7 @@ public class FastaData implements Cloneable
 	{
 		try
 		{
-			this.fileReader = Utils.getFile(file, fastaSuffix);
+			this.chunker = new SequenceFileChunker(file, fastaSuffix);
 		}
 		catch (Exception e)
 		{
@@ -71,7 +70,6 @@ public class FastaData implements Cloneable
 		}
 
 		this.offset = offset;
-		this.lastLine = null;
 		this.readFullFile = false;
 		this.numberProcessed = new AtomicLong(0);
 		this.sequenceList = new ConcurrentLinkedQueue<Sequence>();
@@ -100,107 +98,48 @@ public class FastaData implements Cloneable
 
 	public Sequence dequeue() throws IOException
 	{
+		// parse the next chunk only when the parsed sequences are used up
 		Sequence seq;
-		synchronized (this.sequenceList)
-		{
-			if (this.sequenceList.isEmpty())
-			{
-				enqueueNextSequenceInFile();
-			}
-	
-			// get the sequence
-			seq = this.sequenceList.poll();		
-		}
+		boolean hasMore = true;
+		while ((seq = this.sequenceList.poll())==null && hasMore)
+			hasMore = enqueueNextChunkInFile();
 
 		return seq;
 	}
 
 	public void enqueueFullFile() throws IOException
 	{
-		while (enqueueNextSequenceInFile())
+		while (enqueueNextChunkInFile())
 		{
 		}
 	}
 
-	private boolean enqueueNextSequenceInFile() throws IOException
+	private boolean enqueueNextChunkInFile() throws IOException
 	{
-		StringBuilder fastaSeq = new StringBuilder();
-		String header = null;
-		long index = -1 - this.offset;
+		if (this.readFullFile)
+			return false;
 		
-		synchronized (this.fileReader)
+		// only finding the chunk is serialized, the parsing is done by the calling thread
+		SequenceFileChunker.Chunk chunk = this.chunker.nextChunk();
+		if (chunk==null)
 		{
-			if (this.readFullFile)
-				return false;
-
-			// try to read the next line
-			if (this.lastLine == null)
-			{
-				this.lastLine = this.fileReader.readLine();
-
-				// there is no next line
-				if (this.lastLine == null)
-				{
-					this.fileReader.close();
-					this.readFullFile = true;
-					return false;
-				}
-			}
-
-			// process the header
-			if (!this.lastLine.startsWith(">"))
-				throw new MhapRuntimeException("Next sequence does not start with >. Invalid format.");
-
-			// process the current header
-			if (SequenceId.STORE_FULL_ID)
-				header = this.lastLine.substring(1).split("[\\s,]+", 2)[0];
-			
-			//read the first line of the sequence
-			this.lastLine = this.fileReader.readLine();
-
-			while (true)
+			synchronized (this.chunker)
 			{
-				if (this.lastLine!=null && !this.lastLine.startsWith(">"))
-				{
-					// append the last line
-					fastaSeq.append(this.lastLine);
-					this.lastLine = this.fileReader.readLine();
-				}
-				else
-				if (this.lastLine == null)
+				if (!this.readFullFile)
 				{
-					this.fileReader.close();
+					this.chunker.close();
 					this.readFullFile = true;
-					break;
 				}
-				else
-					break;
 			}
-
-			if (fastaSeq.length()>0)
-				index = this.numberProcessed.incrementAndGet();			
-		}			
-		
-		String fastaSeqSring = fastaSeq.toString();
-		if (!fastaSeqSring.isEmpty())
-		{
-			//generate sequence id
-			SequenceId id;
-			if (SequenceId.STORE_FULL_ID)
-				id = new SequenceId(index + this.offset, true, header);
-			else
-				id = new SequenceId(index + this.offset);
-
-			Sequence seq = new Sequence(fastaSeq.toString().toUpperCase(Locale.ENGLISH), id);
-
-			// enqueue sequence
-			this.sequenceList.add(seq);
-
-			return true;
-		}
-		else
 			return false;
-
+		}
+		
+		ArrayList<Sequence> sequences = new ArrayList<>();
+		int count = this.chunker.parseChunk(chunk, this.offset, sequences);
+		this.sequenceList.addAll(sequences);
+		this.numberProcessed.addAndGet(count);
+		
+		return true;
 	}
 
 	public int getNumberProcessed()
@@ -227,10 +166,7 @@ public class FastaData implements Cloneable
 
 	public boolean isEmpty()
 	{
-		synchronized (this.fileReader)
-		{
-			return this.sequenceList.isEmpty() && this.readFullFile;
-		}
+		return this.sequenceList.isEmpty() && this.readFullFile;
 	}
 
 	/*
@@ -242,6 +178,7 @@ public class FastaData implements Cloneable
 	protected void finalize() throws Throwable
 	{
 		super.finalize();
-		this.fileReader.close();
+		if (this.chunker!=null)
+			this.chunker.close();
 	}
 }
@@ -0,0 +1,308 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.impl;
+
+import it.unimi.dsi.fastutil.HashCommon;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import edu.umd.marbl.mhap.utils.Utils;
+
+/**
+ * Read-only MinHash index of a box, memory-mapped from a file written by write(). The file holds the tables of the
+ * CompactMinHashIndex and the sketches of the stored sequences, so opening it only maps the file, and processes on
+ * the same node share the data through the page cache. The sketches are decoded from the mapped bytes when they are
+ * accessed.
+ * <p>
+ * Layout, all values big-endian: the SketchFileHeader of the sketches, padded to 64 bytes, then the index magic,
+ * version, number of tables, number of min-hash rows per band (0 when the tables are the min-hashes), number of
+ * sequences, number of sequences processed when the box was read, and the size of the largest sketch. For every table follows its size, its keys, its size+1 offsets and the postings of
+ * all the sequences. Last are the numSequences+1 byte offsets of the sketches and the serialized sketches.
+ */
+public final class MappedMinHashIndex
+{
+	private final MinHashBands bands;
+	private final SketchFileHeader header;
+	private final IntBuffer[] keys;
+	private final int[] masks;
+	private final int numberProcessed;
+	private final int numSequences;
+	private final IntBuffer[] offsets;
+	private final IntBuffer[] postings;
+	private final MappedByteBuffer[] sketchChunks;
+	private final LongBuffer sketchOffsets;
+	
+	// "MHIX"
+	public final static int MAGIC = 0x4D484958;
+	public final static int VERSION = 3;
+	
+	private final static int HEADER_SIZE = 92;
+	private final static int SKETCH_HEADER_SIZE = 64;
+	private final static long SKETCH_CHUNK_SIZE = 1L<<30;
+	
+	public static void write(String file, SketchFileHeader header, SequenceSketch[] sketches, int numSketches, int numberProcessed, 
+			CompactMinHashIndex index, MinHashBands bands) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), Utils.BUFFER_BYTE_SIZE));
+			
+			header.write(output);
+			while (output.size()<SKETCH_HEADER_SIZE)
+				output.writeByte(0);
+			
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			output.writeInt(index.numTables());
+			output.writeInt(bands==null ? 0 : bands.numRows());
+			output.writeInt(numSketches);
+			output.writeInt(numberProcessed);
+			// the size of the largest sketch is only known once they are written
+			output.writeInt(0);
+			
+			for (int table = 0; table < index.numTables(); table++)
+			{
+				int[] tableKeys = index.getKeys(table);
+				int[] tableOffsets = index.getOffsets(table);
+				int[] tablePostings = index.getPostings(table);
+				
+				output.writeInt(tableKeys.length);
+				for (int value : tableKeys)
+					output.writeInt(value);
+				for (int value : tableOffsets)
+					output.writeInt(value);
+				for (int iter = 0; iter < numSketches; iter++)
+					output.writeInt(tablePostings[iter]);
+			}
+			
+			//the offsets are left empty and filled in after the sketches, so each sketch is serialized only when written
+			output.flush();
+			long offsetsPosition = channel.position();
+			for (int ordinal = 0; ordinal <= numSketches; ordinal++)
+				output.writeLong(0L);
+			
+			long[] sketchOffsets = new long[numSketches+1];
+			int maxSketchBytes = 0;
+			for (int ordinal = 0; ordinal < numSketches; ordinal++)
+			{
+				byte[] sketchBytes = sketches[ordinal].getAsByteArray();
+				output.write(sketchBytes);
+				
+				sketchOffsets[ordinal+1] = sketchOffsets[ordinal]+sketchBytes.length;
+				maxSketchBytes = Math.max(maxSketchBytes, sketchBytes.length);
+			}
+			output.flush();
+			
+			ByteBuffer buffer = ByteBuffer.allocate(Utils.BUFFER_BYTE_SIZE);
+			long position = offsetsPosition;
+			for (int ordinal = 0; ordinal <= numSketches; ordinal++)
+			{
+				buffer.putLong(sketchOffsets[ordinal]);
+				if (!buffer.hasRemaining() || ordinal==numSketches)
+				{
+					buffer.flip();
+					position += writeFully(channel, buffer, position);
+					buffer.clear();
+				}
+			}
+			
+			buffer.putInt(maxSketchBytes);
+			buffer.flip();
+			writeFully(channel, buffer, HEADER_SIZE-4);
+		}
+	}
+	
+	private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+	{
+		int count = 0;
+		while (buffer.hasRemaining())
+			count += channel.write(buffer, position+count);
+		
+		return count;
+	}
+	
+	public MappedMinHashIndex(String file) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ))
+		{
+			if (channel.size()<HEADER_SIZE)
+				throw new MhapRuntimeException("File "+file+" is not an MHAP index file.");
+			
+			MappedByteBuffer headerBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, HEADER_SIZE);
+			byte[] headerBytes = new byte[SKETCH_HEADER_SIZE];
+			headerBuffer.get(headerBytes);
+			this.header = SketchFileHeader.fromByteStream(new DataInputStream(new ByteArrayInputStream(headerBytes)));
+			
+			if (this.header==null || headerBuffer.getInt()!=MAGIC)
+				throw new MhapRuntimeException("File "+file+" is not an MHAP index file.");
+			
+			int version = headerBuffer.getInt();
+			if (version!=VERSION)
+				throw new MhapRuntimeException("Unsupported index file version "+version+", expected version "+VERSION+".");
+			
+			int numTables = headerBuffer.getInt();
+			int numRows = headerBuffer.getInt();
+			this.bands = numRows>0 ? new MinHashBands(numTables, numRows) : null;
+			this.numSequences = headerBuffer.getInt();
+			this.numberProcessed = headerBuffer.getInt();
+			int maxSketchBytes = headerBuffer.getInt();
+			
+			this.keys = new IntBuffer[numTables];
+			this.masks = new int[numTables];
+			this.offsets = new IntBuffer[numTables];
+			this.postings = new IntBuffer[numTables];
+			
+			//only the table sizes are read, the tables themselves are mapped
+			long position = HEADER_SIZE;
+			for (int table = 0; table < numTables; table++)
+			{
+				int tableSize = channel.map(FileChannel.MapMode.READ_ONLY, position, 4L).getInt();
+				position += 4L;
+				
+				this.masks[table] = tableSize-1;
+				this.keys[table] = channel.map(FileChannel.MapMode.READ_ONLY, position, 4L*tableSize).asIntBuffer();
+				position += 4L*tableSize;
+				this.offsets[table] = channel.map(FileChannel.MapMode.READ_ONLY, position, 4L*(tableSize+1)).asIntBuffer();
+				position += 4L*(tableSize+1);
+				this.postings[table] = channel.map(FileChannel.MapMode.READ_ONLY, position, 4L*this.numSequences).asIntBuffer();
+				position += 4L*this.numSequences;
+			}
+			
+			this.sketchOffsets = channel.map(FileChannel.MapMode.READ_ONLY, position, 8L*(this.numSequences+1)).asLongBuffer();
+			position += 8L*(this.numSequences+1);
+			
+			//a single mapping is limited to 2GB, so the chunks overlap by the largest sketch to never split one
+			long sketchBytes = this.sketchOffsets.get(this.numSequences);
+			if (position+sketchBytes>channel.size())
+				throw new MhapRuntimeException("Index file "+file+" is truncated.");
+			
+			int numChunks = (int)((sketchBytes+SKETCH_CHUNK_SIZE-1)/SKETCH_CHUNK_SIZE);
+			this.sketchChunks = new MappedByteBuffer[numChunks];
+			for (int chunk = 0; chunk < numChunks; chunk++)
+			{
+				long start = chunk*SKETCH_CHUNK_SIZE;
+				long size = Math.min(SKETCH_CHUNK_SIZE+maxSketchBytes, sketchBytes-start);
+				this.sketchChunks[chunk] = channel.map(FileChannel.MapMode.READ_ONLY, position+start, size);
+			}
+		}
+	}
+	
+	/**
+	 * @return the slot of the bucket with the given min-hash, or -1 if no sequence has it
+	 */
+	public int findBucket(int table, int hash)
+	{
+		final IntBuffer tableKeys = this.keys[table];
+		final IntBuffer tableOffsets = this.offsets[table];
+		final int mask = this.masks[table];
+		
+		int slot = HashCommon.mix(hash) & mask;
+		while (tableOffsets.get(slot+1)!=tableOffsets.get(slot))
+		{
+			if (tableKeys.get(slot)==hash)
+				return slot;
+			
+			slot = (slot+1) & mask;
+		}
+		
+		return -1;
+	}
+	
+	public int getBucketEnd(int table, int slot)
+	{
+		return this.offsets[table].get(slot+1);
+	}
+	
+	public int getBucketStart(int table, int slot)
+	{
+		return this.offsets[table].get(slot);
+	}
+	
+	/**
+	 * @return the banding of the min-hashes the tables were built from, or null if every table is a min-hash
+	 */
+	public MinHashBands getBands()
+	{
+		return this.bands;
+	}
+	
+	public SketchFileHeader getHeader()
+	{
+		return this.header;
+	}
+	
+	/**
+	 * @return the number of sequences read from the file of the box, for offsetting the ids of later files
+	 */
+	public int getNumberProcessed()
+	{
+		return this.numberProcessed;
+	}
+	
+	public int getPosting(int table, int index)
+	{
+		return this.postings[table].get(index);
+	}
+	
+	public SequenceSketch getSketch(int ordinal)
+	{
+		long start = this.sketchOffsets.get(ordinal);
+		int size = (int)(this.sketchOffsets.get(ordinal+1)-start);
+		int chunk = (int)(start/SKETCH_CHUNK_SIZE);
+		
+		//decode from a duplicate, so concurrent readers do not share a position
+		ByteBuffer buffer = this.sketchChunks[chunk].duplicate();
+		buffer.position((int)(start-chunk*SKETCH_CHUNK_SIZE));
+		buffer.limit(buffer.position()+size);
+		
+		return SequenceSketch.fromByteBuffer(buffer, 0);
+	}
+	
+	public int numTables()
+	{
+		return this.keys.length;
+	}
+	
+	public int size()
+	{
+		return this.numSequences;
+	}
+}
@@ -0,0 +1,310 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.impl;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Precomputed dat file memory-mapped for reading, as blocks of records that any thread can decode without locking.
+ * Version 2 files list their blocks in the footer written by SketchFileWriter, and the blocks may be compressed. For
+ * version 1 and header-less files, the record boundaries are found once when the file is opened, and every
+ * RECORDS_PER_BLOCK records form a block.
+ * <p>
+ * A single mapping is limited to 2GB, so the file is mapped in chunks that end at block boundaries.
+ */
+public final class MappedSketchFile
+{
+	private final int[] blockChunks;
+	private final int[] blockRawSizes;
+	private final int[] blockRecords;
+	private final int[] blockStarts;
+	private final int[] blockStoredSizes;
+	private final MappedByteBuffer[] chunks;
+	private final boolean compressed;
+	private final SketchFileHeader header;
+	private final long numRecords;
+	
+	private final static int RECORD_HEADER_SIZE = 5;
+	private final static int RECORDS_PER_BLOCK = 256;
+	private final static long MAX_CHUNK_SIZE = Integer.MAX_VALUE;
+	
+	public MappedSketchFile(String file) throws IOException
+	{
+		//the header is optional, so parse it with the stream reader
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+		{
+			this.header = SketchFileHeader.fromByteStream(input);
+		}
+		this.compressed = this.header!=null && this.header.isCompressed();
+		
+		LongArrayList offsets = new LongArrayList();
+		IntArrayList storedSizes = new IntArrayList();
+		IntArrayList rawSizes = new IntArrayList();
+		IntArrayList records = new IntArrayList();
+		try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ))
+		{
+			if (this.header!=null && this.header.getVersion()>=2)
+				readFooter(channel, file, offsets, storedSizes, rawSizes, records);
+			else
+				scanRecords(channel, file, this.header==null ? 0L : this.header.byteSize(), offsets, storedSizes, records);
+			
+			if (!this.compressed)
+				rawSizes = storedSizes;
+			
+			//map the blocks in as few chunks as possible
+			int numBlocks = offsets.size();
+			this.blockChunks = new int[numBlocks];
+			this.blockStarts = new int[numBlocks];
+			ArrayList<MappedByteBuffer> chunkList = new ArrayList<>();
+			int block = 0;
+			while (block<numBlocks)
+			{
+				long chunkStart = offsets.getLong(block);
+				int chunkEnd = block;
+				while (chunkEnd<numBlocks && offsets.getLong(chunkEnd)+storedSizes.getInt(chunkEnd)-chunkStart<=MAX_CHUNK_SIZE)
+				{
+					this.blockChunks[chunkEnd] = chunkList.size();
+					this.blockStarts[chunkEnd] = (int)(offsets.getLong(chunkEnd)-chunkStart);
+					chunkEnd++;
+				}
+				
+				if (chunkEnd==block)
+					throw new MhapRuntimeException("Block "+block+" of file "+file+" is larger than 2GB.");
+				
+				long chunkSize = offsets.getLong(chunkEnd-1)+storedSizes.getInt(chunkEnd-1)-chunkStart;
+				chunkList.add(channel.map(FileChannel.MapMode.READ_ONLY, chunkStart, chunkSize));
+				block = chunkEnd;
+			}
+			this.chunks = chunkList.toArray(new MappedByteBuffer[chunkList.size()]);
+		}
+		
+		this.blockStoredSizes = storedSizes.toIntArray();
+		this.blockRawSizes = rawSizes.toIntArray();
+		this.blockRecords = records.toIntArray();
+		
+		long numRecords = 0L;
+		for (int count : this.blockRecords)
+			numRecords += count;
+		this.numRecords = numRecords;
+	}
+	
+	private static void readFooter(FileChannel channel, String file, LongArrayList offsets, IntArrayList storedSizes, IntArrayList rawSizes, 
+			IntArrayList records) throws IOException
+	{
+		long fileSize = channel.size();
+		if (fileSize<SketchFileWriter.FOOTER_TAIL_SIZE)
+			throw new MhapRuntimeException("File "+file+" is truncated, the footer is missing.");
+		
+		ByteBuffer tail = channel.map(FileChannel.MapMode.READ_ONLY, fileSize-SketchFileWriter.FOOTER_TAIL_SIZE, SketchFileWriter.FOOTER_TAIL_SIZE);
+		long footerOffset = tail.getLong();
+		if (tail.getInt()!=SketchFileWriter.FOOTER_MAGIC || footerOffset<0L || footerOffset+4L>fileSize)
+			throw new MhapRuntimeException("File "+file+" is truncated, the footer is missing.");
+		
+		int numBlocks = channel.map(FileChannel.MapMode.READ_ONLY, footerOffset, 4L).getInt();
+		if (numBlocks<0 || footerOffset+4L+(long)numBlocks*SketchFileWriter.FOOTER_ENTRY_SIZE+SketchFileWriter.FOOTER_TAIL_SIZE!=fileSize)
+			throw new MhapRuntimeException("File "+file+" has a corrupt footer.");
+		
+		ByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, footerOffset+4L, (long)numBlocks*SketchFileWriter.FOOTER_ENTRY_SIZE);
+		for (int block = 0; block < numBlocks; block++)
+		{
+			long offset = footer.getLong();
+			int storedSize = footer.getInt();
+			if (offset<0L || storedSize<0 || offset+storedSize>footerOffset)
+				throw new MhapRuntimeException("File "+file+" has a corrupt footer.");
+			
+			offsets.add(offset);
+			storedSizes.add(storedSize);
+			rawSizes.add(footer.getInt());
+			records.add(footer.getInt());
+		}
+	}
+	
+	private static void scanRecords(FileChannel channel, String file, long dataStart, LongArrayList offsets, IntArrayList sizes, IntArrayList records) 
+			throws IOException
+	{
+		long fileSize = channel.size();
+		long chunkStart = dataStart;
+		while (chunkStart<fileSize)
+		{
+			MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, chunkStart, Math.min(MAX_CHUNK_SIZE, fileSize-chunkStart));
+			
+			//walk the record sizes until a record does not fit in the chunk
+			int position = 0;
+			int blockStart = 0;
+			int blockRecords = 0;
+			while (position+RECORD_HEADER_SIZE<=chunk.limit())
+			{
+				int recordSize = chunk.getInt(position+1);
+				if (recordSize<0 || (long)position+RECORD_HEADER_SIZE+recordSize>chunk.limit())
+					break;
+				
+				position += RECORD_HEADER_SIZE+recordSize;
+				blockRecords++;
+				
+				if (blockRecords==RECORDS_PER_BLOCK)
+				{
+					offsets.add(chunkStart+blockStart);
+					sizes.add(position-blockStart);
+					records.add(blockRecords);
+					blockStart = position;
+					blockRecords = 0;
+				}
+			}
+			
+			if (blockRecords>0)
+			{
+				offsets.add(chunkStart+blockStart);
+				sizes.add(position-blockStart);
+				records.add(blockRecords);
+			}
+			
+			if (position==0)
+				throw new MhapRuntimeException("File "+file+" is truncated or corrupt at byte "+chunkStart+".");
+			
+			chunkStart += position;
+		}
+	}
+	
+	public SketchFileHeader getHeader()
+	{
+		return this.header;
+	}
+	
+	public int numBlocks()
+	{
+		return this.blockRecords.length;
+	}
+	
+	/**
+	 * Decodes the records of the block. Safe to call from multiple threads.
+	 * 
+	 * @param offset
+	 *            added to the sequence ids of the records
+	 * @param fwdOnly
+	 *            if true, the reverse strand records are skipped without decoding them
+	 */
+	public ArrayList<SequenceSketch> readBlock(int block, int offset, boolean fwdOnly)
+	{
+		int start = this.blockStarts[block];
+		int storedSize = this.blockStoredSizes[block];
+		
+		//decode from a duplicate, so concurrent readers do not share a position
+		ByteBuffer buffer = this.chunks[this.blockChunks[block]].duplicate();
+		buffer.position(start);
+		buffer.limit(start+storedSize);
+		
+		if (this.compressed)
+			buffer = ByteBuffer.wrap(inflate(buffer, storedSize, this.blockRawSizes[block]));
+		
+		int blockEnd = buffer.limit();
+		ArrayList<SequenceSketch> sketches = new ArrayList<>(this.blockRecords[block]);
+		for (int record = 0; record < this.blockRecords[block]; record++)
+		{
+			if (buffer.remaining()<RECORD_HEADER_SIZE)
+				throw new MhapRuntimeException("Block "+block+" of the dat file is corrupt.");
+			
+			boolean isFwd = buffer.get()==1;
+			int recordSize = buffer.getInt();
+			if (recordSize<0 || recordSize>buffer.remaining())
+				throw new MhapRuntimeException("Block "+block+" of the dat file is corrupt.");
+			
+			int recordEnd = buffer.position()+recordSize;
+			if (!fwdOnly || isFwd)
+			{
+				buffer.limit(recordEnd);
+				sketches.add(SequenceSketch.fromByteBuffer(buffer, offset));
+				buffer.limit(blockEnd);
+			}
+			buffer.position(recordEnd);
+		}
+		
+		return sketches;
+	}
+	
+	private static byte[] inflate(ByteBuffer buffer, int storedSize, int rawSize)
+	{
+		byte[] stored = new byte[storedSize];
+		buffer.get(stored);
+		
+		Inflater inflater = new Inflater();
+		try
+		{
+			inflater.setInput(stored);
+			byte[] raw = new byte[rawSize];
+			int size = 0;
+			while (size<rawSize && !inflater.finished())
+			{
+				int count = inflater.inflate(raw, size, rawSize-size);
+				if (count==0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				size += count;
+			}
+			
+			if (size!=rawSize)
+				throw new MhapRuntimeException("Compressed block of the dat file is truncated.");
+			
+			return raw;
+		}
+		catch (DataFormatException e)
+		{
+			throw new MhapRuntimeException("Compressed block of the dat file is corrupt.", e);
+		}
+		finally
+		{
+			inflater.end();
+		}
+	}
+	
+	public boolean isCompressed()
+	{
+		return this.compressed;
+	}
+	
+	/**
+	 * @return the number of records of both strands
+	 */
+	public long size()
+	{
+		return this.numRecords;
+	}
+}
@@ -29,6 +29,7 @@
  */
 package edu.umd.marbl.mhap.impl;
 
+import edu.umd.marbl.mhap.utils.OutputBuffer;
 
 public final class MatchResult implements Comparable<MatchResult>
 {
@@ -88,6 +89,27 @@ public final class MatchResult implements Comparable<MatchResult>
 		return this.score;
 	}
 
+	/**
+	 * Appends the same line as toString(), with the line separator.
+	 */
+	public void appendTo(OutputBuffer buffer)
+	{
+		getFromId().appendHeader(buffer);
+		buffer.append(' ');
+		getToId().appendHeader(buffer);
+		buffer.append(' ');
+		buffer.format(1.0-getScore(), 6).append(' ');
+		buffer.format(this.rawScore, 6).append(' ');
+		buffer.format(getFromId().isForward() ? 0L : 1L).append(' ');
+		buffer.format(this.a1).append(' ');
+		buffer.format(this.a2).append(' ');
+		buffer.format(this.fromLength).append(' ');
+		buffer.format(getToId().isForward() ? 0L : 1L).append(' ');
+		buffer.format(this.b1).append(' ');
+		buffer.format(this.b2).append(' ');
+		buffer.format(this.toLength).appendLine();
+	}
+	
 	@Override
 	public int compareTo(MatchResult o)
 	{
@@ -0,0 +1,111 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.impl;
+
+import edu.umd.marbl.mhap.sketch.HashUtils;
+
+/**
+ * Locality sensitive hashing by banding of the min-hashes. The min-hashes are split into bands of consecutive rows,
+ * and all the rows of a band are hashed into a single key, so two sequences share a key only if they share the
+ * min-hashes of the whole band. Two sequences with Jaccard similarity J share at least one of the b keys with
+ * probability 1-(1-J^r)^b.
+ */
+public final class MinHashBands
+{
+	private final int numBands;
+	private final int numRows;
+	
+	/**
+	 * Selects the largest number of rows per band, and so the most selective keys, for which sequences with the
+	 * given Jaccard similarity still share a key with the given probability.
+	 */
+	public static MinHashBands fromJaccard(int numHashes, double jaccard, double sensitivity)
+	{
+		for (int numRows = numHashes; numRows > 1; numRows--)
+		{
+			MinHashBands bands = new MinHashBands(numHashes/numRows, numRows);
+			if (bands.hitProbability(jaccard)>=sensitivity)
+				return bands;
+		}
+		
+		return new MinHashBands(numHashes, 1);
+	}
+	
+	public MinHashBands(int numBands, int numRows)
+	{
+		if (numBands<1 || numRows<1)
+			throw new MhapRuntimeException("The number of bands and rows must be positive.");
+		
+		this.numBands = numBands;
+		this.numRows = numRows;
+	}
+	
+	/**
+	 * @return the key of every band, min-hashes past the last full band are not used
+	 */
+	public int[] getKeys(int[] minHashes)
+	{
+		if (minHashes.length<this.numBands*this.numRows)
+			throw new MhapRuntimeException("Number of min-hashes "+minHashes.length+" is less than the "+this.numBands+"x"+this.numRows+" bands.");
+		
+		int[] keys = new int[this.numBands];
+		int index = 0;
+		for (int band = 0; band < this.numBands; band++)
+		{
+			long hash = band;
+			for (int row = 0; row < this.numRows; row++)
+				hash = HashUtils.mix64(hash + ((long)minHashes[index++] & 0xFFFFFFFFL));
+			
+			keys[band] = (int)(hash ^ (hash>>>32));
+		}
+		
+		return keys;
+	}
+	
+	public double hitProbability(double jaccard)
+	{
+		return 1.0-Math.pow(1.0-Math.pow(jaccard, this.numRows), this.numBands);
+	}
+	
+	public int numBands()
+	{
+		return this.numBands;
+	}
+	
+	public int numRows()
+	{
+		return this.numRows;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return this.numBands+" bands of "+this.numRows+" min-hashes";
+	}
+}
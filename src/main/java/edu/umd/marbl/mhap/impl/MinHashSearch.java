@@ -30,23 +30,33 @@
 package edu.umd.marbl.mhap.impl;
 
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import edu.umd.marbl.mhap.sketch.MinHashSketch;
-import edu.umd.marbl.mhap.utils.HitCounter;
+import edu.umd.marbl.mhap.utils.Utils;
 
 public final class MinHashSearch extends AbstractMatchSearch
 {
 	private final double acceptScore;
 
-	private final ArrayList<Map<Integer, ArrayList<SequenceId>>> hashes;
+	private final MinHashBands bands;
+	private final boolean canonical;
+	private final CompactMinHashIndex compactIndex;
+	private final ArrayList<Int2ObjectOpenHashMap<IntArrayList>> hashes;
+	private final long indexBuildTime;
+	private final MappedMinHashIndex mappedIndex;
 	private final double maxShift;
 	private final AtomicLong minhashSearchTime;
 	private final AtomicLong sortMergeSearchTime;
@@ -57,11 +67,61 @@ public final class MinHashSearch extends AbstractMatchSearch
 	private final AtomicLong numberSequencesHit;
 	private final AtomicLong numberSequencesMinHashed;
 
+	private final int numHashes;
 	private final int numMinMatches;
-	private final Map<SequenceId, SequenceSketch> sequenceVectorsHash;
+	private final AtomicInteger numberSequencesStored;
+	private final boolean packSketches;
+
+	private final static int INITIAL_CAPACITY = 1024;
+	
+	//the index keys of the stored sequences by their ordinal, only while the sequences are added
+	private int[][] sequenceKeys;
+	//the stored sequences by their ordinal, the index only holds the ordinals, grows while the sequences are added
+	private SequenceSketch[] sequenceSketches;
+	//the number of sequences every table already holds, only while the sequences are added
+	private int[] tableSizes;
+	//for a mapped index, only built if the stored sequences are searched by id
+	private Map<SequenceId, SequenceSketch> sequenceVectorsHash;
+	
+	public MinHashSearch(SequenceSketchStreamer data, int numHashes, int numMinMatches, int numThreads, 
+			boolean storeResults, int minStoreLength, double maxShift, double acceptScore) throws IOException
+	{
+		this(data, numHashes, numMinMatches, numThreads, storeResults, minStoreLength, maxShift, acceptScore, false);
+	}
 	
 	public MinHashSearch(SequenceSketchStreamer data, int numHashes, int numMinMatches, int numThreads, 
-			boolean storeResults, int minStoreLength, double maxShift, double acceptScore, boolean doReverseCompliment) throws IOException
+			boolean storeResults, int minStoreLength, double maxShift, double acceptScore, boolean useCompactIndex) throws IOException
+	{
+		this(data, numHashes, numMinMatches, numThreads, storeResults, minStoreLength, maxShift, acceptScore, useCompactIndex, null);
+	}
+	
+	public MinHashSearch(SequenceSketchStreamer data, int numHashes, int numMinMatches, int numThreads, 
+			boolean storeResults, int minStoreLength, double maxShift, double acceptScore, boolean useCompactIndex,
+			MinHashBands bands) throws IOException
+	{
+		this(data, numHashes, numMinMatches, numThreads, storeResults, minStoreLength, maxShift, acceptScore, useCompactIndex, bands, false);
+	}
+	
+	public MinHashSearch(SequenceSketchStreamer data, int numHashes, int numMinMatches, int numThreads, 
+			boolean storeResults, int minStoreLength, double maxShift, double acceptScore, boolean useCompactIndex,
+			MinHashBands bands, boolean packSketches) throws IOException
+	{
+		this(data, numHashes, numMinMatches, numThreads, storeResults, minStoreLength, maxShift, acceptScore, useCompactIndex, bands, packSketches, false);
+	}
+	
+	/**
+	 * @param bands
+	 *            if not null, the tables are keyed by the bands of the min-hashes instead of the individual
+	 *            min-hashes, and a single shared band makes a sequence a candidate
+	 * @param packSketches
+	 *            if true, the ordered k-mers of the stored sequences are bit-packed
+	 * @param canonical
+	 *            if true, the sketches use canonical k-mers, so only the forward strand is stored, and the reverse
+	 *            compliment orientation is scored on the reverse strand view of its ordered k-mers
+	 */
+	public MinHashSearch(SequenceSketchStreamer data, int numHashes, int numMinMatches, int numThreads, 
+			boolean storeResults, int minStoreLength, double maxShift, double acceptScore, boolean useCompactIndex,
+			MinHashBands bands, boolean packSketches, boolean canonical) throws IOException
 	{
 		super(numThreads, storeResults);
 
@@ -76,108 +136,291 @@ public final class MinHashSearch extends AbstractMatchSearch
 		this.minhashSearchTime = new AtomicLong();
 		this.sortMergeSearchTime = new AtomicLong();
 		
-		// enqueue full file, since have to know full size
-		data.enqueueFullFile(false, this.numThreads);
-
+		this.numHashes = numHashes;
+		this.bands = bands;
+		this.canonical = canonical;
+		this.packSketches = packSketches;
+		this.mappedIndex = null;
+		this.sequenceSketches = new SequenceSketch[INITIAL_CAPACITY];
+		this.numberSequencesStored = new AtomicInteger();
+		
+		//the hash tables grow while the file is read, the compact index needs all the sequences first
+		this.hashes = useCompactIndex ? null : newHashTables();
+		this.sequenceKeys = useCompactIndex ? null : new int[INITIAL_CAPACITY][];
+		this.tableSizes = useCompactIndex ? null : new int[numTables()];
+		
+		//store both forward and reverse, canonical sketches are the same for both
+		long startTime = System.nanoTime();
+		addData(data, !canonical);
+		int numSequences = this.numberSequencesStored.get();
+		this.sequenceSketches = Arrays.copyOf(this.sequenceSketches, numSequences);
+		
+		if (this.hashes!=null)
+			finishHashTables(numSequences);
+		this.sequenceKeys = null;
+		this.tableSizes = null;
+		
 		//this.sequenceVectorsHash = new HashMap<>(data.getNumberProcessed());
-		this.sequenceVectorsHash = new Object2ObjectOpenHashMap<>(data.getNumberProcessed());
-
-		this.hashes = new ArrayList<>(numHashes);
-		for (int iter = 0; iter < numHashes; iter++)
+		this.sequenceVectorsHash = new Object2ObjectOpenHashMap<>(numSequences);
+		for (int ordinal = 0; ordinal < numSequences; ordinal++)
 		{
-			//Map<Integer,ArrayList<SequenceId>> map = new HashMap<Integer, ArrayList<SequenceId>>(data.getNumberProcessed());			
-			Map<Integer,ArrayList<SequenceId>> map = new Int2ObjectOpenHashMap<ArrayList<SequenceId>>(data.getNumberProcessed());
-			
-			this.hashes.add(map);
+			SequenceSketch currHash = this.sequenceSketches[ordinal];
+			if (this.sequenceVectorsHash.put(currHash.getSequenceId(), currHash) != null)
+				throw new MhapRuntimeException("Sequence ID already exists in the hash table.");
 		}
 		
-		//store both forward andd reverse
-		addData(data, doReverseCompliment);
+		if (useCompactIndex)
+		{
+			this.compactIndex = new CompactMinHashIndex(getIndexKeys(numSequences), numSequences, numTables(), this.numThreads);
+			
+			System.err.println("Compact index size: "+this.compactIndex.sizeInBytes()/Utils.MBYTES+" MB.");
+		}
+		else
+			this.compactIndex = null;
+		this.indexBuildTime = System.nanoTime()-startTime;
 		
 		System.err.println("Stored "+this.sequenceVectorsHash.size()+" sequences in the index.");
+		if (this.bands!=null)
+			System.err.println("Indexed "+this.bands+".");
+		System.err.println("Time (s) to build the index: "+getIndexBuildTime());
 	}
 
+	public MinHashSearch(MappedMinHashIndex index, int numMinMatches, int numThreads, boolean storeResults, int minStoreLength, 
+			double maxShift, double acceptScore)
+	{
+		super(numThreads, storeResults);
+
+		this.minStoreLength = minStoreLength;
+		this.numMinMatches = numMinMatches;
+		this.maxShift = maxShift;
+		this.acceptScore = acceptScore;
+		this.numberSequencesHit = new AtomicLong();
+		this.numberSequencesFullyCompared = new AtomicLong();
+		this.numberSequencesMinHashed = new AtomicLong(index.size());
+		this.numberElementsProcessed = new AtomicLong();
+		this.minhashSearchTime = new AtomicLong();
+		this.sortMergeSearchTime = new AtomicLong();
+		
+		//the sketches stay in the mapped file, and are decoded when they are compared
+		this.numHashes = index.getHeader().getNumHashes();
+		this.bands = index.getBands();
+		this.canonical = index.getHeader().isCanonical();
+		this.packSketches = false;
+		this.mappedIndex = index;
+		this.compactIndex = null;
+		this.hashes = null;
+		this.sequenceSketches = null;
+		this.sequenceVectorsHash = null;
+		this.numberSequencesStored = new AtomicInteger(index.size());
+		this.indexBuildTime = 0L;
+		
+		System.err.println("Opened index of "+index.size()+" sequences.");
+	}
+	
 	@Override
-	public boolean addSequence(SequenceSketch currHash)
+	public boolean addSequence(SequenceSketch currHash, int thread, int numThreads)
 	{
 		int[] currMinHashes = currHash.getMinHashes().getMinHashArray();
 
-		if (currMinHashes.length != this.hashes.size())
+		if (currMinHashes.length != this.numHashes)
 			throw new MhapRuntimeException("Number of MinHashes of the sequence does not match current settings.");
 
-		// put the result into the hashmap
-		synchronized (this.sequenceVectorsHash)
+		SequenceSketch storedHash = this.packSketches ? currHash.pack() : currHash;
+		
+		int[] keys = this.hashes==null ? null : this.bands==null ? currMinHashes : this.bands.getKeys(currMinHashes);
+		
+		//the ordinals are claimed in order, so the arrays only grow under the lock
+		int ordinal;
+		int[][] sequenceKeys;
+		synchronized (this.numberSequencesStored)
 		{
-			SequenceSketch minHash = this.sequenceVectorsHash.put(currHash.getSequenceId(), currHash);
-			if (minHash != null)
+			ordinal = this.numberSequencesStored.get();
+			if (ordinal>=this.sequenceSketches.length)
 			{
-				this.sequenceVectorsHash.put(currHash.getSequenceId(), minHash);
-
-				throw new MhapRuntimeException("Sequence ID already exists in the hash table.");
-			}			
+				this.sequenceSketches = Arrays.copyOf(this.sequenceSketches, ordinal+(ordinal>>>1));
+				if (this.sequenceKeys!=null)
+					this.sequenceKeys = Arrays.copyOf(this.sequenceKeys, ordinal+(ordinal>>>1));
+			}
+			
+			this.sequenceSketches[ordinal] = storedHash;
+			if (this.sequenceKeys!=null)
+				this.sequenceKeys[ordinal] = keys;
+			this.numberSequencesStored.set(ordinal+1);
+			
+			sequenceKeys = this.sequenceKeys;
 		}
 		
-		// add the hashes
-		int count = 0;
-		SequenceId id = currHash.getSequenceId();
-		for (Map<Integer, ArrayList<SequenceId>> hash : this.hashes)
+		//every thread owns a block of the tables, and adds all the sequences stored so far to them
+		if (sequenceKeys!=null)
+			indexSequences(sequenceKeys, keys.length*thread/numThreads, keys.length*(thread+1)/numThreads, ordinal+1);
+		
+		//increment the counter
+		this.numberSequencesMinHashed.getAndIncrement();
+		
+		return true;
+	}
+	
+	// the sequences the tables still miss, every table is filled by a single thread, so no locking is needed
+	private void finishHashTables(final int numSequences)
+	{
+		final int numTables = numTables();
+		final AtomicInteger nextTable = new AtomicInteger();
+		ExecutorService execSvc = Executors.newFixedThreadPool(this.numThreads);
+		for (int iter = 0; iter < this.numThreads; iter++)
 		{
-			ArrayList<SequenceId> currList;
-			final int hashVal = currMinHashes[count];
-
-			// get the list
-			synchronized (hash)
-			{
-				currList = hash.computeIfAbsent(hashVal, k-> new ArrayList<SequenceId>(2));
-			}
+			execSvc.execute(() -> {
+				int table;
+				while ((table = nextTable.getAndIncrement()) < numTables)
+					indexSequences(this.sequenceKeys, table, table+1, numSequences);
+			});
+		}
 
-			// add the element
-			synchronized (currList)
+		execSvc.shutdown();
+		try
+		{
+			execSvc.awaitTermination(365L, TimeUnit.DAYS);
+		}
+		catch (InterruptedException e)
+		{
+			execSvc.shutdownNow();
+			throw new MhapRuntimeException("Unable to finish all tasks.");
+		}
+	}
+	
+	/**
+	 * Adds the ordinals up to numSequences to the tables fromTable to toTable. The caller must be the only thread
+	 * filling these tables, the sequences are added in the order of their ordinals.
+	 */
+	private void indexSequences(int[][] sequenceKeys, int fromTable, int toTable, int numSequences)
+	{
+		for (int table = fromTable; table < toTable; table++)
+		{
+			Int2ObjectOpenHashMap<IntArrayList> map = this.hashes.get(table);
+			for (int ordinal = this.tableSizes[table]; ordinal < numSequences; ordinal++)
 			{
-				currList.add(id);
+				final int hashVal = sequenceKeys[ordinal][table];
+				
+				IntArrayList currList = map.get(hashVal);
+				if (currList==null)
+				{
+					currList = new IntArrayList(2);
+					map.put(hashVal, currList);
+				}
+				
+				currList.add(ordinal);
 			}
 			
-			count++;
+			this.tableSizes[table] = Math.max(this.tableSizes[table], numSequences);
 		}
+	}
+	
+	private ArrayList<Int2ObjectOpenHashMap<IntArrayList>> newHashTables()
+	{
+		int numTables = numTables();
+		ArrayList<Int2ObjectOpenHashMap<IntArrayList>> tables = new ArrayList<>(numTables);
+		for (int iter = 0; iter < numTables; iter++)
+			tables.add(new Int2ObjectOpenHashMap<IntArrayList>());
+		
+		return tables;
+	}
 
-		//increment the counter
-		this.numberSequencesMinHashed.getAndIncrement();
+	// the keys every stored sequence is indexed by, the min-hashes themselves unless banding
+	private int[][] getIndexKeys(int numSequences)
+	{
+		int[][] sequenceKeys = new int[numSequences][];
+		for (int ordinal = 0; ordinal < numSequences; ordinal++)
+		{
+			int[] minHashes = this.sequenceSketches[ordinal].getMinHashes().getMinHashArray();
+			sequenceKeys[ordinal] = this.bands==null ? minHashes : this.bands.getKeys(minHashes);
+		}
 		
-		return true;
+		return sequenceKeys;
+	}
+	
+	private int numTables()
+	{
+		return this.bands==null ? this.numHashes : this.bands.numBands();
 	}
 
-	@Override
 	public List<MatchResult> findMatches(SequenceSketch seqHashes, boolean toSelf)
+	{
+		return findMatches(seqHashes, toSelf, new SearchWorkspace());
+	}
+
+	@Override
+	public List<MatchResult> findMatches(SequenceSketch seqHashes, boolean toSelf, SearchWorkspace workspace)
 	{
 		//for performance reasons might need to change
 		long startTime = System.nanoTime();
 
 		MinHashSketch minHash = seqHashes.getMinHashes();
 
-		if (this.hashes.size() != minHash.numHashes())
-			throw new MhapRuntimeException("Number of hashes does not match. Stored size " + this.hashes.size()
+		int numHashes = this.numHashes;
+		if (numHashes != minHash.numHashes())
+			throw new MhapRuntimeException("Number of hashes does not match. Stored size " + numHashes
 					+ ", input size " + minHash.numHashes() + ".");
 		
-		Map<SequenceId, HitCounter> bestSequenceHit = new Object2ObjectOpenHashMap<>(256);
-		int[] minHashes = minHash.getMinHashArray();
+		//count the hits of every stored sequence by its ordinal
+		workspace.resetHits(this.numberSequencesStored.get());
+		int[] minHashes = this.bands==null ? minHash.getMinHashArray() : this.bands.getKeys(minHash.getMinHashArray());
+		int numTables = minHashes.length;
 		
-		int hashIndex = 0;
 		long additionalProcessed = 0L;
-		for (Map<Integer,ArrayList<SequenceId>> currHash : this.hashes)
+		if (this.mappedIndex!=null)
 		{
-			ArrayList<SequenceId> currentHashMatchList = currHash.get(minHashes[hashIndex]);
-
-			// if some matches exist add them
-			if (currentHashMatchList != null)
+			for (int hashIndex = 0; hashIndex < numTables; hashIndex++)
 			{
-				additionalProcessed += currentHashMatchList.size();
-				for (SequenceId sequenceId : currentHashMatchList)
+				int slot = this.mappedIndex.findBucket(hashIndex, minHashes[hashIndex]);
+				if (slot<0)
+					continue;
+				
+				int start = this.mappedIndex.getBucketStart(hashIndex, slot);
+				int end = this.mappedIndex.getBucketEnd(hashIndex, slot);
+				for (int posting = start; posting < end; posting++)
+					workspace.addHit(this.mappedIndex.getPosting(hashIndex, posting));
+				
+				additionalProcessed += end-start;
+			}
+		}
+		else
+		if (this.compactIndex!=null)
+		{
+			for (int hashIndex = 0; hashIndex < numTables; hashIndex++)
+			{
+				int slot = this.compactIndex.findBucket(hashIndex, minHashes[hashIndex]);
+				if (slot<0)
+					continue;
+				
+				// add the matches of the bucket
+				int[] postings = this.compactIndex.getPostings(hashIndex);
+				int start = this.compactIndex.getBucketStart(hashIndex, slot);
+				int end = this.compactIndex.getBucketEnd(hashIndex, slot);
+				for (int posting = start; posting < end; posting++)
+					workspace.addHit(postings[posting]);
+				
+				additionalProcessed += end-start;
+			}
+		}
+		else
+		{
+			int hashIndex = 0;
+			for (Int2ObjectOpenHashMap<IntArrayList> currHash : this.hashes)
+			{
+				IntArrayList currentHashMatchList = currHash.get(minHashes[hashIndex]);
+	
+				// if some matches exist add them
+				if (currentHashMatchList != null)
 				{
-					bestSequenceHit.compute(sequenceId, (k,v)-> (v==null) ? new HitCounter(1) : v.addHit());
+					int size = currentHashMatchList.size();
+					int[] ordinals = currentHashMatchList.elements();
+					for (int iter = 0; iter < size; iter++)
+						workspace.addHit(ordinals[iter]);
+					
+					additionalProcessed += size;
 				}
+				
+				hashIndex++;
 			}
-			
-			hashIndex++;
 		}
 		
 		//record the search time
@@ -186,60 +429,75 @@ public final class MinHashSearch extends AbstractMatchSearch
 
 		//record the procssed statistic
 		this.numberElementsProcessed.getAndAdd(additionalProcessed);
-		this.numberSequencesHit.getAndAdd(bestSequenceHit.size());
+		this.numberSequencesHit.getAndAdd(workspace.getNumberHit());
+		
+		//see if the hit number is high enough, the candidates are ordered by decreasing hits
+		int numCandidates = workspace.selectCandidates(this.bands==null ? this.numMinMatches : 1);
+		int[] candidates = workspace.getCandidates();
 		
 		// compute the proper counts for all sets and remove below threshold
 		ArrayList<MatchResult> matches = new ArrayList<MatchResult>(32);
 		
-		for (Entry<SequenceId, HitCounter> match : bestSequenceHit.entrySet())
+		//the query is compared to all the candidates, so index its ordered k-mers once
+		if (numCandidates>0)
+			workspace.getOverlapWorkspace().prepareQuery(seqHashes.getOrderedHashes());
+		
+		for (int iter = 0; iter < numCandidates; iter++)
 		{
+			SequenceSketch matchedHashes = getStoredSketch(candidates[iter]);
+			
 			//get the match id
-			SequenceId matchId = match.getKey();
+			SequenceId matchId = matchedHashes.getSequenceId();
 			
 			// do not store matches with smaller ids, unless its coming from a short read
 			if (toSelf && matchId.getHeaderId() == seqHashes.getSequenceId().getHeaderId())
 				continue;
 
-			//see if the hit number is high enough			
-			if (match.getValue().count >= this.numMinMatches)
+			//never process short to short
+			if (matchedHashes.getSequenceLength()<this.minStoreLength && seqHashes.getSequenceLength()<this.minStoreLength)
+				continue;
+			
+			//never process long to long in self, with greater id
+			if (toSelf 
+					&& matchId.getHeaderId() > seqHashes.getSequenceId().getHeaderId()
+					&& matchedHashes.getSequenceLength()>=this.minStoreLength
+					&& seqHashes.getSequenceLength()>=this.minStoreLength)
+				continue;
+			
+			//never do short to long
+			if (toSelf 
+					&& matchedHashes.getSequenceLength()<this.minStoreLength
+					&& seqHashes.getSequenceLength()>=this.minStoreLength)
+				continue;
+			
+			//compute the direct hash score
+			OverlapInfo result = seqHashes.getOrderedHashes().getOverlapInfo(matchedHashes.getOrderedHashes(), this.maxShift, workspace.getOverlapWorkspace());
+			
+			//the other orientation is only stored as the same canonical sketch, the k-mers of the true orientation also
+			//match in the other one, but with few consistent shifts, so keep the orientation with more matches
+			if (this.canonical)
 			{
-				SequenceSketch matchedHashes = this.sequenceVectorsHash.get(match.getKey());
-				if (matchedHashes==null)
-					throw new MhapRuntimeException("Hashes not found for given id.");
-				
-				//never process short to short
-				if (matchedHashes.getSequenceLength()<this.minStoreLength && seqHashes.getSequenceLength()<this.minStoreLength)
-					continue;
-				
-				//never process long to long in self, with greater id
-				if (toSelf 
-						&& matchId.getHeaderId() > seqHashes.getSequenceId().getHeaderId()
-						&& matchedHashes.getSequenceLength()>=this.minStoreLength
-						&& seqHashes.getSequenceLength()>=this.minStoreLength)
-					continue;
-				
-				//never do short to long
-				if (toSelf 
-						&& matchedHashes.getSequenceLength()<this.minStoreLength
-						&& seqHashes.getSequenceLength()>=this.minStoreLength)
-					continue;
-				
-				//compute the direct hash score
-				OverlapInfo result = seqHashes.getOrderedHashes().getOverlapInfo(matchedHashes.getOrderedHashes(), this.maxShift);
-				boolean accept = result.score >= this.acceptScore;					
-								
-				//increment the counter
-				this.numberSequencesFullyCompared.getAndIncrement();
-
-				//if score is good add
-				if (accept)
+				OverlapInfo reverseResult = seqHashes.getOrderedHashes().getOverlapInfo(matchedHashes.getOrderedHashes().reverseStrandView(), this.maxShift, workspace.getOverlapWorkspace());
+				if (reverseResult.rawScore > result.rawScore || (reverseResult.rawScore == result.rawScore && reverseResult.score > result.score))
 				{
-					MatchResult currResult = new MatchResult(seqHashes.getSequenceId(), matchId, result, seqHashes.getSequenceLength(), matchedHashes.getSequenceLength());
-
-					// add to list
-					matches.add(currResult);
+					result = reverseResult;
+					matchId = matchId.complimentId();
 				}
 			}
+			
+			boolean accept = result.score >= this.acceptScore;					
+							
+			//increment the counter
+			this.numberSequencesFullyCompared.getAndIncrement();
+
+			//if score is good add
+			if (accept)
+			{
+				MatchResult currResult = new MatchResult(seqHashes.getSequenceId(), matchId, result, seqHashes.getSequenceLength(), matchedHashes.getSequenceLength());
+
+				// add to list
+				matches.add(currResult);
+			}
 		}
 		
 		//record the search time
@@ -250,6 +508,16 @@ public final class MinHashSearch extends AbstractMatchSearch
 		return matches;
 	}
 
+	public boolean isCanonical()
+	{
+		return this.canonical;
+	}
+	
+	public double getIndexBuildTime()
+	{
+		return this.indexBuildTime * 1.0e-9;
+	}
+	
 	public double getMinHashSearchTime()
 	{
 		return this.minhashSearchTime.longValue() * 1.0e-9;
@@ -281,11 +549,37 @@ public final class MinHashSearch extends AbstractMatchSearch
 		return this.numberSequencesHit.get();
 	}
 			
+	private SequenceSketch getStoredSketch(int ordinal)
+	{
+		if (this.mappedIndex!=null)
+			return this.mappedIndex.getSketch(ordinal);
+		
+		return this.sequenceSketches[ordinal];
+	}
+	
+	private synchronized Map<SequenceId, SequenceSketch> getSequenceVectorsHash()
+	{
+		if (this.sequenceVectorsHash==null)
+		{
+			Map<SequenceId, SequenceSketch> map = new Object2ObjectOpenHashMap<>(this.mappedIndex.size());
+			for (int ordinal = 0; ordinal < this.mappedIndex.size(); ordinal++)
+			{
+				SequenceSketch currHash = this.mappedIndex.getSketch(ordinal);
+				map.put(currHash.getSequenceId(), currHash);
+			}
+			
+			this.sequenceVectorsHash = map;
+		}
+		
+		return this.sequenceVectorsHash;
+	}
+
 	@Override
 	public List<SequenceId> getStoredForwardSequenceIds()
 	{
-		ArrayList<SequenceId> seqIds = new ArrayList<SequenceId>(this.sequenceVectorsHash.size());
-		for (SequenceSketch hashes : this.sequenceVectorsHash.values())
+		Map<SequenceId, SequenceSketch> storedHashes = getSequenceVectorsHash();
+		ArrayList<SequenceId> seqIds = new ArrayList<SequenceId>(storedHashes.size());
+		for (SequenceSketch hashes : storedHashes.values())
 			if (hashes.getSequenceId().isForward())
 				seqIds.add(hashes.getSequenceId());
 		
@@ -295,12 +589,28 @@ public final class MinHashSearch extends AbstractMatchSearch
 	@Override
 	public SequenceSketch getStoredSequenceHash(SequenceId id)
 	{
-		return this.sequenceVectorsHash.get(id);
+		return getSequenceVectorsHash().get(id);
+	}
+	
+	/**
+	 * Writes the index and the stored sketches to a file that can be opened as a MappedMinHashIndex.
+	 */
+	public void saveIndex(String file, SketchFileHeader header, int numberProcessed) throws IOException
+	{
+		if (this.mappedIndex!=null)
+			throw new MhapRuntimeException("Index is already stored in a file.");
+		
+		int numSequences = this.numberSequencesStored.get();
+		CompactMinHashIndex index = this.compactIndex;
+		if (index==null)
+			index = new CompactMinHashIndex(getIndexKeys(numSequences), numSequences, numTables(), this.numThreads);
+		
+		MappedMinHashIndex.write(file, header, this.sequenceSketches, numSequences, numberProcessed, index, this.bands);
 	}
 
 	@Override
 	public int size()
 	{
-		return this.sequenceVectorsHash.size();
+		return this.numberSequencesStored.get();
 	}
 }
@@ -0,0 +1,134 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.impl;
+
+import java.util.Arrays;
+
+import edu.umd.marbl.mhap.sketch.OverlapWorkspace;
+
+/**
+ * Scratch space of a single search thread, reused between the queries it processes. The min-hash hits of a query
+ * are counted in a dense array indexed by the ordinal of the stored sequence, together with the list of ordinals
+ * that were hit, so counting is an array increment and resetting costs only the number of sequences hit. Also
+ * holds the scratch space of the second stage overlap scoring. Not thread safe.
+ */
+public final class SearchWorkspace
+{
+	private int[] candidates;
+	private int[] hitCounts;
+	private final OverlapWorkspace overlapWorkspace;
+	private long[] sortBuffer;
+	private int[] touched;
+	private int numTouched;
+	
+	public SearchWorkspace()
+	{
+		this.candidates = new int[16];
+		this.hitCounts = new int[0];
+		this.overlapWorkspace = new OverlapWorkspace();
+		this.sortBuffer = new long[16];
+		this.touched = new int[16];
+		this.numTouched = 0;
+	}
+	
+	public void addHit(int ordinal)
+	{
+		if (this.hitCounts[ordinal]++==0)
+		{
+			if (this.numTouched>=this.touched.length)
+				this.touched = Arrays.copyOf(this.touched, this.touched.length*2);
+			
+			this.touched[this.numTouched++] = ordinal;
+		}
+	}
+	
+	/**
+	 * Array of the candidates found by the last call to selectCandidates().
+	 */
+	public int[] getCandidates()
+	{
+		return this.candidates;
+	}
+	
+	public OverlapWorkspace getOverlapWorkspace()
+	{
+		return this.overlapWorkspace;
+	}
+	
+	public int getNumberHit()
+	{
+		return this.numTouched;
+	}
+	
+	/**
+	 * Must be called before counting the hits of a query against numSequences stored sequences.
+	 */
+	public void resetHits(int numSequences)
+	{
+		if (this.hitCounts.length<numSequences)
+			this.hitCounts = new int[numSequences];
+		
+		this.numTouched = 0;
+	}
+	
+	/**
+	 * Collects the ordinals with at least minCount hits into the candidates array, in decreasing order of hits, and
+	 * clears the counts of all the hit ordinals.
+	 * 
+	 * @return the number of candidates
+	 */
+	public int selectCandidates(int minCount)
+	{
+		if (this.sortBuffer.length<this.numTouched)
+			this.sortBuffer = new long[Math.max(this.numTouched, this.sortBuffer.length*2)];
+		
+		//pack the negated count above the ordinal, so ascending order is by decreasing count and then by ordinal
+		int numCandidates = 0;
+		for (int iter = 0; iter < this.numTouched; iter++)
+		{
+			int ordinal = this.touched[iter];
+			int count = this.hitCounts[ordinal];
+			this.hitCounts[ordinal] = 0;
+			
+			if (count>=minCount)
+				this.sortBuffer[numCandidates++] = ((long)-count<<32) | (long)ordinal;
+		}
+		
+		Arrays.sort(this.sortBuffer, 0, numCandidates);
+		
+		if (this.candidates.length<numCandidates)
+			this.candidates = new int[Math.max(numCandidates, this.candidates.length*2)];
+		for (int iter = 0; iter < numCandidates; iter++)
+			this.candidates[iter] = (int)this.sortBuffer[iter];
+		
+		this.numTouched = 0;
+		
+		return numCandidates;
+	}
+}
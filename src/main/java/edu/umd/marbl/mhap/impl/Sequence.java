@@ -29,42 +29,249 @@
  */
 package edu.umd.marbl.mhap.impl;
 
-import edu.umd.marbl.mhap.utils.Utils;
+import java.util.Arrays;
 
+import edu.umd.marbl.mhap.sketch.HashUtils;
+
+/**
+ * A sequence with its bases packed into 2 bits each, 32 bases per long. Bases other than A, C, G and T are stored as
+ * A in the packed array, and recorded as runs of the same letter in a separate exception list. The reverse compliment
+ * shares the packed array and exception list, and only reads them backwards.
+ */
 public final class Sequence
 {
-	private final String sequence;
+	/**
+	 * Reads the 2-bit codes of the bases in order, returning -1 for bases other than A, C, G and T.
+	 */
+	public final static class CodeReader
+	{
+		private int exception;
+		private int exceptionEnd;
+		private int exceptionStart;
+		private final Sequence sequence;
+		private int position;
+		private final boolean reverse;
+		
+		private CodeReader(Sequence sequence, boolean reverse)
+		{
+			this.sequence = sequence;
+			this.reverse = reverse;
+			this.position = 0;
+			this.exception = -1;
+			nextException();
+		}
+		
+		public int next()
+		{
+			final int position = this.position++;
+			while (position>=this.exceptionStart)
+			{
+				if (position<this.exceptionEnd)
+					return -1;
+				nextException();
+			}
+			
+			return this.sequence.code(this.reverse ? this.sequence.length-1-position : position, this.reverse);
+		}
+		
+		private void nextException()
+		{
+			this.exception++;
+			final Sequence seq = this.sequence;
+			if (this.exception>=seq.exceptionStarts.length)
+			{
+				this.exceptionStart = Integer.MAX_VALUE;
+				this.exceptionEnd = Integer.MAX_VALUE;
+				return;
+			}
+			
+			if (this.reverse)
+			{
+				int index = seq.exceptionStarts.length-1-this.exception;
+				this.exceptionStart = seq.length-seq.exceptionStarts[index]-seq.exceptionLengths[index];
+				this.exceptionEnd = seq.length-seq.exceptionStarts[index];
+			}
+			else
+			{
+				this.exceptionStart = seq.exceptionStarts[this.exception];
+				this.exceptionEnd = this.exceptionStart+seq.exceptionLengths[this.exception];
+			}
+		}
+	}
+	
+	private final static char[] BASES = { 'A', 'C', 'G', 'T' };
+	private final static int[] NO_EXCEPTIONS = new int[0];
+	private final static char[] COMPLIMENT = new char[128];
+	
+	static
+	{
+		for (int iter = 0; iter < COMPLIMENT.length; iter++)
+			COMPLIMENT[iter] = (char)iter;
+		
+		// same as the ambiguity codes of Utils.rc
+		String pairs = "ATCGBVDHKMRY";
+		for (int iter = 0; iter < pairs.length(); iter += 2)
+		{
+			COMPLIMENT[pairs.charAt(iter)] = pairs.charAt(iter+1);
+			COMPLIMENT[pairs.charAt(iter+1)] = pairs.charAt(iter);
+		}
+	}
+	
+	private final char[] exceptionBases;
+	private final int[] exceptionLengths;
+	private final int[] exceptionStarts;
 	private final SequenceId id;
+	private final int length;
+	private final long[] packed;
+	private final boolean reverse;
 	
-	public Sequence(int[] sequence, SequenceId id)
+	public Sequence(byte[] bases, int length, SequenceId id)
 	{
 		this.id = id;
+		this.length = length;
+		this.reverse = false;
+		this.packed = new long[(length+31)>>>5];
 		
-		StringBuilder s = new StringBuilder();
-		for (int iter=0; iter<sequence.length; iter++)
+		int numExceptions = 0;
+		int[] starts = NO_EXCEPTIONS;
+		int[] lengths = NO_EXCEPTIONS;
+		char[] exceptionBases = new char[0];
+		
+		for (int iter = 0; iter < length; iter++)
 		{
-			switch(sequence[iter])
+			char base = (char)(bases[iter] & 0xFF);
+			int code = HashUtils.nucleotideCode(base);
+			if (code>=0)
+			{
+				this.packed[iter>>>5] |= (long)code<<(62-((iter & 31)<<1));
+				continue;
+			}
+			
+			base = Character.toUpperCase(base);
+			if (numExceptions>0 && exceptionBases[numExceptions-1]==base && starts[numExceptions-1]+lengths[numExceptions-1]==iter)
+			{
+				lengths[numExceptions-1]++;
+				continue;
+			}
+			
+			if (numExceptions==starts.length)
 			{
-				case 0 : s.append("U"); break;
-				case 1 : s.append("C"); break;
-				case 2 : s.append("G"); break;
-				case 3 : s.append("T"); break;
-				default : throw new RuntimeException("Uknown integer value.");
+				int capacity = Math.max(4, numExceptions*2);
+				starts = Arrays.copyOf(starts, capacity);
+				lengths = Arrays.copyOf(lengths, capacity);
+				exceptionBases = Arrays.copyOf(exceptionBases, capacity);
 			}
+			
+			starts[numExceptions] = iter;
+			lengths[numExceptions] = 1;
+			exceptionBases[numExceptions] = base;
+			numExceptions++;
 		}
 		
-		this.sequence = s.toString();
+		this.exceptionStarts = numExceptions==0 ? NO_EXCEPTIONS : Arrays.copyOf(starts, numExceptions);
+		this.exceptionLengths = numExceptions==0 ? NO_EXCEPTIONS : Arrays.copyOf(lengths, numExceptions);
+		this.exceptionBases = Arrays.copyOf(exceptionBases, numExceptions);
 	}
 	
-	public Sequence(String sequence, SequenceId id)
+	public Sequence(int[] sequence, SequenceId id)
+	{
+		this.id = id;
+		this.length = sequence.length;
+		this.reverse = false;
+		this.packed = new long[(this.length+31)>>>5];
+		this.exceptionStarts = NO_EXCEPTIONS;
+		this.exceptionLengths = NO_EXCEPTIONS;
+		this.exceptionBases = new char[0];
+		
+		for (int iter=0; iter<sequence.length; iter++)
+		{
+			if (sequence[iter]<0 || sequence[iter]>3)
+				throw new RuntimeException("Uknown integer value.");
+			
+			this.packed[iter>>>5] |= (long)sequence[iter]<<(62-((iter & 31)<<1));
+		}
+	}
+	
+	private Sequence(Sequence forward, SequenceId id, boolean reverse)
 	{
-		this.sequence = sequence;
 		this.id = id;
+		this.length = forward.length;
+		this.reverse = reverse;
+		this.packed = forward.packed;
+		this.exceptionStarts = forward.exceptionStarts;
+		this.exceptionLengths = forward.exceptionLengths;
+		this.exceptionBases = forward.exceptionBases;
+	}
+	
+	public Sequence(String sequence, SequenceId id)
+	{
+		this(toBytes(sequence), sequence.length(), id);
+	}
+	
+	private static byte[] toBytes(String sequence)
+	{
+		byte[] bases = new byte[sequence.length()];
+		for (int iter = 0; iter < bases.length; iter++)
+		{
+			char c = sequence.charAt(iter);
+			bases[iter] = c<128 ? (byte)c : (byte)'N';
+		}
+		
+		return bases;
+	}
+	
+	/**
+	 * @return the base at the index of this strand
+	 */
+	public char charAt(int index)
+	{
+		int position = this.reverse ? this.length-1-index : index;
+		
+		int exception = findException(position);
+		if (exception>=0)
+		{
+			char base = this.exceptionBases[exception];
+			return this.reverse && base<COMPLIMENT.length ? COMPLIMENT[base] : base;
+		}
+		
+		return BASES[code(position, this.reverse)];
+	}
+	
+	private int code(int position, boolean compliment)
+	{
+		int code = (int)(this.packed[position>>>5]>>>(62-((position & 31)<<1))) & 3;
+		
+		return compliment ? 3-code : code;
+	}
+	
+	/**
+	 * @param reverseCompliment
+	 *            if true, reads the reverse compliment of this strand
+	 */
+	public CodeReader codeReader(boolean reverseCompliment)
+	{
+		return new CodeReader(this, this.reverse!=reverseCompliment);
+	}
+	
+	/**
+	 * @return the index of the exception run covering the forward position, or -1
+	 */
+	private int findException(int position)
+	{
+		int index = Arrays.binarySearch(this.exceptionStarts, position);
+		if (index>=0)
+			return index;
+		
+		index = -index-2;
+		if (index>=0 && position<this.exceptionStarts[index]+this.exceptionLengths[index])
+			return index;
+		
+		return -1;
 	}
 	
 	public String getSquenceString()
 	{
-		return this.sequence;
+		return getKmer(0, this.length);
 	}
 	
 	public SequenceId getId()
@@ -72,24 +279,70 @@ public final class Sequence
 		return this.id;
 	}
 	
+	/**
+	 * @return the reverse compliment, sharing the packed bases of this sequence
+	 */
 	public Sequence getReverseCompliment()
 	{
-		return new Sequence(Utils.rc(this.sequence), this.id.complimentId());
+		return new Sequence(this, this.id.complimentId(), !this.reverse);
 	}
 	
 	public String getKmer(int index, int kmerSize)
 	{
-		return this.sequence.substring(index, index+kmerSize);
+		if (index<0 || kmerSize<0 || index+kmerSize>this.length)
+			throw new StringIndexOutOfBoundsException(index+kmerSize);
+		
+		char[] bases = new char[kmerSize];
+		for (int iter = 0; iter < kmerSize; iter++)
+		{
+			int position = this.reverse ? this.length-1-index-iter : index+iter;
+			bases[iter] = BASES[code(position, this.reverse)];
+		}
+		
+		// overwrite the bases in the exception runs
+		for (int exception = 0; exception < this.exceptionStarts.length; exception++)
+		{
+			int start = this.exceptionStarts[exception];
+			int end = start+this.exceptionLengths[exception];
+			if (this.reverse)
+			{
+				int reverseStart = this.length-end;
+				end = this.length-start;
+				start = reverseStart;
+			}
+			
+			char base = this.exceptionBases[exception];
+			if (this.reverse && base<COMPLIMENT.length)
+				base = COMPLIMENT[base];
+			
+			for (int position = Math.max(start, index); position < Math.min(end, index+kmerSize); position++)
+				bases[position-index] = base;
+		}
+		
+		return new String(bases);
+	}
+	
+	public boolean isReverseCompliment()
+	{
+		return this.reverse;
 	}
 	
 	public int numKmers(int kmerSize)
 	{
-		return this.sequence.length()-kmerSize+1;
+		return this.length-kmerSize+1;
 	}
 	
 	public int length()
 	{
-		return this.sequence.length();
+		return this.length;
+	}
+	
+	/**
+	 * @return the approximate memory used by the packed bases and the exception list
+	 */
+	public long sizeInBytes()
+	{
+		return 8L*this.packed.length+9L*this.exceptionStarts.length;
 	}
 
 	/* (non-Javadoc)
@@ -101,7 +354,7 @@ public final class Sequence
 		StringBuilder str = new StringBuilder();
 		
 		str.append(">"+this.id+"\n");
-		str.append(this.sequence);
+		str.append(getSquenceString());
 		
 		return str.toString();
 	}
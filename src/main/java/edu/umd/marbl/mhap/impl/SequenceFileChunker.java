@@ -0,0 +1,437 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.umd.marbl.mhap.utils.Utils;
+
+/**
+ * Splits a FASTA or FASTQ file into chunks of whole records, which are parsed into sequences by parseChunk()
+ * independently of each other, so multiple threads can parse a file in parallel. Plain files are memory-mapped,
+ * compressed files are read through the decompressing stream.
+ * <p>
+ * The records without sequence are skipped, and the others are numbered from 1 in the order of the file. To give
+ * every chunk the number of its first record, the records are counted while the chunk boundaries are found, which
+ * only looks at the line starts and does not copy the sequences. FASTQ records must have the sequence on a single
+ * line, as written by the sequencers.
+ */
+final class SequenceFileChunker implements Closeable
+{
+	static final class Chunk
+	{
+		private final ByteBuffer data;
+		private final long firstIndex;
+		
+		private Chunk(ByteBuffer data, long firstIndex)
+		{
+			this.data = data;
+			this.firstIndex = firstIndex;
+		}
+	}
+	
+	private byte[] buffer;
+	private int bufferEnd;
+	private int bufferStart;
+	private final FileChannel channel;
+	private boolean closed;
+	private final String file;
+	private long filePosition;
+	private final long fileSize;
+	private Boolean fastq;
+	private final InputStream input;
+	private long numRecords;
+	
+	private final static int CHUNK_SIZE = 1<<22;
+	
+	SequenceFileChunker(String file, String[] suffixes) throws IOException
+	{
+		this.file = file;
+		this.numRecords = 0L;
+		this.fastq = null;
+		if (file.endsWith("gz") || file.endsWith("bz2"))
+		{
+			this.input = Utils.getInputStream(file);
+			this.channel = null;
+			this.fileSize = -1L;
+			this.buffer = new byte[CHUNK_SIZE*2];
+		}
+		else
+		{
+			boolean known = false;
+			for (String suffix : suffixes)
+				known |= file.endsWith(suffix);
+			if (!known)
+				throw new IOException("Unknown file format of file " + file+".");
+			
+			this.input = null;
+			this.channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+			this.fileSize = this.channel.size();
+			this.buffer = null;
+		}
+		this.filePosition = 0L;
+		this.bufferStart = 0;
+		this.bufferEnd = 0;
+		this.closed = false;
+	}
+	
+	@Override
+	public synchronized void close() throws IOException
+	{
+		this.closed = true;
+		if (this.channel!=null)
+			this.channel.close();
+		if (this.input!=null)
+			this.input.close();
+	}
+	
+	private static boolean isSpace(byte b)
+	{
+		return b=='\n' || b=='\r' || b==' ' || b=='\t';
+	}
+	
+	/**
+	 * @return the next chunk of whole records, or null at the end of the file
+	 */
+	synchronized Chunk nextChunk() throws IOException
+	{
+		// another thread reached the end of the file first
+		if (this.closed)
+			return null;
+		
+		int windowSize = CHUNK_SIZE+(CHUNK_SIZE>>>2);
+		ByteBuffer window = window(windowSize);
+		
+		//skip the whitespace before the first record
+		int start = 0;
+		while (start<window.limit() && isSpace(window.get(start)))
+			start++;
+		if (start>=window.limit())
+			return null;
+		
+		if (this.fastq==null)
+		{
+			if (window.get(start)!='>' && window.get(start)!='@')
+				throw new MhapRuntimeException("File "+this.file+" does not start with > or @. Invalid format.");
+			
+			this.fastq = window.get(start)=='@';
+		}
+		
+		// walk the line starts until the first record start past the chunk size
+		long firstIndex = this.numRecords;
+		int position = start;
+		int lineNumber = 0;
+		boolean hasSequence = false;
+		boolean firstLine = true;
+		int end = -1;
+		while (end<0)
+		{
+			if (position>=window.limit())
+			{
+				// the window holds the rest of the file
+				if (window.limit()<windowSize)
+				{
+					end = window.limit();
+					break;
+				}
+				
+				windowSize *= 2;
+				window = window(windowSize);
+				continue;
+			}
+			
+			byte b = window.get(position);
+			boolean recordStart;
+			if (this.fastq)
+			{
+				// blank lines are only allowed between the records
+				if (lineNumber==0 && (b=='\n' || b=='\r'))
+				{
+					position++;
+					continue;
+				}
+				
+				recordStart = lineNumber==0;
+				if (recordStart && b!='@')
+					throw new MhapRuntimeException("Next sequence of file "+this.file+" does not start with @. Invalid format.");
+				if (lineNumber==1 && b!='\n' && b!='\r')
+					hasSequence = true;
+			}
+			else
+			{
+				recordStart = b=='>';
+				if (!recordStart && b!='\n' && b!='\r')
+					hasSequence = true;
+			}
+			
+			if (recordStart && !firstLine)
+			{
+				if (hasSequence)
+					this.numRecords++;
+				hasSequence = false;
+				
+				if (position-start>=CHUNK_SIZE)
+				{
+					end = position;
+					break;
+				}
+			}
+			firstLine = false;
+			
+			// move to the next line
+			int lineEnd = indexOfNewline(window, position);
+			if (lineEnd<0)
+			{
+				if (window.limit()<windowSize)
+				{
+					end = window.limit();
+					break;
+				}
+				
+				windowSize *= 2;
+				window = window(windowSize);
+				continue;
+			}
+			
+			position = lineEnd+1;
+			if (this.fastq)
+				lineNumber = (lineNumber+1)&3;
+		}
+		
+		// the last record of the chunk
+		if (hasSequence)
+			this.numRecords++;
+		
+		ByteBuffer data = take(window, start, end);
+		return new Chunk(data, firstIndex);
+	}
+	
+	private static int indexOfNewline(ByteBuffer window, int position)
+	{
+		int limit = window.limit();
+		for (int iter = position; iter < limit; iter++)
+			if (window.get(iter)=='\n')
+				return iter;
+		
+		return -1;
+	}
+	
+	/**
+	 * Parses the records of the chunk into sequences, numbered after the records of the previous chunks.
+	 * 
+	 * @return the number of sequences added
+	 */
+	int parseChunk(Chunk chunk, long offset, List<Sequence> sequences)
+	{
+		// parse from an array, a mapped chunk is copied in bulk
+		byte[] data;
+		int position;
+		int limit;
+		if (chunk.data.hasArray())
+		{
+			data = chunk.data.array();
+			position = chunk.data.arrayOffset()+chunk.data.position();
+			limit = chunk.data.arrayOffset()+chunk.data.limit();
+		}
+		else
+		{
+			data = new byte[chunk.data.remaining()];
+			chunk.data.duplicate().get(data);
+			position = 0;
+			limit = data.length;
+		}
+		long index = chunk.firstIndex;
+		boolean fastq = this.fastq;
+		
+		byte[] bases = new byte[1024];
+		int numBases = 0;
+		String header = null;
+		int lineNumber = 0;
+		boolean inRecord = false;
+		boolean hasSequence = false;
+		int count = 0;
+		
+		while (position<limit)
+		{
+			int lineEnd = position;
+			while (lineEnd<limit && data[lineEnd]!='\n')
+				lineEnd++;
+			int contentEnd = lineEnd;
+			if (contentEnd>position && data[contentEnd-1]=='\r')
+				contentEnd--;
+			
+			boolean recordStart;
+			boolean sequenceLine;
+			if (fastq)
+			{
+				if (lineNumber==0 && contentEnd==position)
+				{
+					position = lineEnd+1;
+					continue;
+				}
+				
+				recordStart = lineNumber==0;
+				sequenceLine = lineNumber==1;
+				lineNumber = (lineNumber+1)&3;
+			}
+			else
+			{
+				recordStart = contentEnd>position && data[position]=='>';
+				sequenceLine = !recordStart;
+			}
+			
+			if (recordStart)
+			{
+				if (inRecord && hasSequence)
+				{
+					sequences.add(newSequence(++index, offset, header, bases, numBases));
+					count++;
+				}
+				
+				inRecord = true;
+				hasSequence = false;
+				numBases = 0;
+				header = SequenceId.STORE_FULL_ID ? parseHeader(data, position+1, contentEnd) : null;
+			}
+			else
+			if (sequenceLine)
+			{
+				// same test as the counting in nextChunk()
+				if (lineEnd>position && data[position]!='\r')
+					hasSequence = true;
+				
+				int length = contentEnd-position;
+				if (numBases+length>bases.length)
+					bases = Arrays.copyOf(bases, Math.max(bases.length*2, numBases+length));
+				
+				// lower case is handled when the bases are packed
+				System.arraycopy(data, position, bases, numBases, length);
+				numBases += length;
+			}
+			
+			position = lineEnd+1;
+		}
+		
+		if (inRecord && hasSequence)
+		{
+			sequences.add(newSequence(++index, offset, header, bases, numBases));
+			count++;
+		}
+		
+		return count;
+	}
+	
+	private static Sequence newSequence(long index, long offset, String header, byte[] bases, int numBases)
+	{
+		SequenceId id;
+		if (SequenceId.STORE_FULL_ID)
+			id = new SequenceId(index + offset, true, header);
+		else
+			id = new SequenceId(index + offset);
+
+		return new Sequence(bases, numBases, id);
+	}
+	
+	/**
+	 * @return the header up to the first whitespace or comma
+	 */
+	private static String parseHeader(byte[] data, int start, int end)
+	{
+		int idEnd = start;
+		while (idEnd<end)
+		{
+			byte b = data[idEnd];
+			if (b==',' || b==' ' || b=='\t' || b==0x0B || b=='\f')
+				break;
+			idEnd++;
+		}
+		
+		return new String(data, start, idEnd-start, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Removes the bytes up to end from the start of the file.
+	 * 
+	 * @return the bytes from start to end
+	 */
+	private ByteBuffer take(ByteBuffer window, int start, int end)
+	{
+		ByteBuffer data;
+		if (this.channel!=null)
+		{
+			data = window.duplicate();
+			data.position(start);
+			data.limit(end);
+			data = data.slice();
+			this.filePosition += end;
+		}
+		else
+		{
+			//the buffer is reused for the next chunk, so the chunk is copied out
+			data = ByteBuffer.wrap(Arrays.copyOfRange(this.buffer, this.bufferStart+start, this.bufferStart+end));
+			this.bufferStart += end;
+		}
+		
+		return data;
+	}
+	
+	/**
+	 * @return the next size bytes of the file, or all the remaining bytes if fewer
+	 */
+	private ByteBuffer window(int size) throws IOException
+	{
+		if (this.channel!=null)
+			return this.channel.map(FileChannel.MapMode.READ_ONLY, this.filePosition, Math.min(size, this.fileSize-this.filePosition));
+		
+		if (this.bufferEnd-this.bufferStart<size)
+		{
+			// move the remaining bytes to the front, and read the rest
+			if (this.buffer.length<size)
+				this.buffer = Arrays.copyOf(this.buffer, size);
+			System.arraycopy(this.buffer, this.bufferStart, this.buffer, 0, this.bufferEnd-this.bufferStart);
+			this.bufferEnd -= this.bufferStart;
+			this.bufferStart = 0;
+			
+			int count;
+			while (this.bufferEnd<size && (count = this.input.read(this.buffer, this.bufferEnd, size-this.bufferEnd))>=0)
+				this.bufferEnd += count;
+		}
+		
+		return ByteBuffer.wrap(this.buffer, this.bufferStart, Math.min(size, this.bufferEnd-this.bufferStart)).slice();
+	}
+}
@@ -31,6 +31,8 @@ package edu.umd.marbl.mhap.impl;
 
 import java.io.Serializable;
 
+import edu.umd.marbl.mhap.utils.OutputBuffer;
+
 public final class SequenceId implements Serializable
 {
 	/**
@@ -106,6 +108,17 @@ public final class SequenceId implements Serializable
 		
 		return String.valueOf(this.id);
 	}
+	
+	/**
+	 * Appends the same text as getHeader().
+	 */
+	public void appendHeader(OutputBuffer buffer)
+	{
+		if (this.strId!=null)
+			buffer.append(this.strId);
+		else
+			buffer.append(this.id);
+	}
 
 	/* (non-Javadoc)
 	 * @see java.lang.Object#hashCode()
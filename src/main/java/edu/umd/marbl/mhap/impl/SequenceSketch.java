@@ -29,17 +29,23 @@
  */
 package edu.umd.marbl.mhap.impl;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 import edu.umd.marbl.mhap.sketch.FrequencyCounts;
 import edu.umd.marbl.mhap.sketch.MinHashSketch;
+import edu.umd.marbl.mhap.sketch.MultiKmerSketcher;
 import edu.umd.marbl.mhap.sketch.BottomOverlapSketch;
+import edu.umd.marbl.mhap.sketch.SketchWorkspace;
 import edu.umd.marbl.mhap.sketch.ZeroNGramsFoundException;
+import edu.umd.marbl.mhap.utils.Pair;
 
 public final class SequenceSketch implements Serializable
 {
@@ -58,6 +64,22 @@ public final class SequenceSketch implements Serializable
 	public final static int SUBSEQUENCE_SIZE = 50;
 	public final static int BIT_KMER_SIZE = 7;
 
+	/**
+	 * Decodes the sketch written by getAsByteArray() at the position of the buffer, and moves the position past it.
+	 */
+	public static SequenceSketch fromByteBuffer(ByteBuffer buffer, int offset)
+	{
+		boolean isFwd = buffer.get()!=0;
+		long headerId = buffer.getLong();
+		SequenceId id = new SequenceId(headerId + offset, isFwd, readUTF(buffer));
+		int sequenceLength = buffer.getInt();
+		
+		MinHashSketch mainHashes = MinHashSketch.fromByteBuffer(buffer);
+		BottomOverlapSketch orderedHashes = BottomOverlapSketch.fromByteBuffer(buffer);
+
+		return new SequenceSketch(id, sequenceLength, mainHashes, orderedHashes);
+	}
+
 	public static SequenceSketch fromByteStream(DataInputStream input, int offset) throws IOException
 	{
 		try
@@ -95,6 +117,33 @@ public final class SequenceSketch implements Serializable
 		}
 	}
 
+	private static String readUTF(ByteBuffer buffer)
+	{
+		int length = buffer.getShort() & 0xFFFF;
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		
+		//ids are almost always ascii, which is the same in modified UTF-8
+		boolean isAscii = true;
+		for (byte b : bytes)
+			if (b<=0)
+			{
+				isAscii = false;
+				break;
+			}
+		if (isAscii)
+			return new String(bytes, StandardCharsets.US_ASCII);
+		
+		try
+		{
+			return new DataInputStream(new ByteArrayInputStream(ByteBuffer.allocate(2+length).putShort((short)length).put(bytes).array())).readUTF();
+		}
+		catch (IOException e)
+		{
+			throw new MhapRuntimeException("Invalid sequence id in sketch.", e);
+		}
+	}
+
 	public SequenceSketch(SequenceId id, int sequenceLength, MinHashSketch mainHashes, BottomOverlapSketch orderedHashes)
 	{
 		this.sequenceLength = sequenceLength;
@@ -104,15 +153,53 @@ public final class SequenceSketch implements Serializable
 	}
 
 	public SequenceSketch(Sequence seq, int kmerSize, int numHashes, int orderedKmerSize, int orderedSketchSize, FrequencyCounts kmerFilter, boolean doReverseCompliment, double repeatWeight) throws ZeroNGramsFoundException
+	{
+		this(seq, new MultiKmerSketcher(kmerSize, numHashes, orderedKmerSize, orderedSketchSize, kmerFilter, repeatWeight));
+	}
+
+	public SequenceSketch(Sequence seq, MultiKmerSketcher sketcher) throws ZeroNGramsFoundException
+	{
+		this(seq, false, sketcher, new SketchWorkspace());
+	}
+
+	public SequenceSketch(Sequence seq, boolean reverseCompliment, MultiKmerSketcher sketcher, SketchWorkspace workspace) throws ZeroNGramsFoundException
 	{
 		this.sequenceLength = seq.length();
-		this.id = seq.getId();
+		this.id = reverseCompliment ? seq.getId().complimentId() : seq.getId();
+		
+		//do not do reverse compliment for either sketch, both are computed in one pass over the sequence
+		Pair<MinHashSketch, BottomOverlapSketch> sketches = sketcher.sketch(seq, reverseCompliment, workspace);
+		this.mainHashes = sketches.x;
+		this.orderedHashes = sketches.y;
+	}
+
+	/**
+	 * Sketches both strands of the sequence in a single pass.
+	 * 
+	 * @return the forward and reverse compliment sketches, the reverse compliment is null if only it has no valid
+	 *         k-mers after filtering
+	 */
+	public static Pair<SequenceSketch, SequenceSketch> sketchBothStrands(Sequence seq, MultiKmerSketcher sketcher, SketchWorkspace workspace) throws ZeroNGramsFoundException
+	{
+		Pair<Pair<MinHashSketch, BottomOverlapSketch>, Pair<MinHashSketch, BottomOverlapSketch>> sketches = sketcher.sketchBothStrands(seq, workspace);
 		
-		//do not do reverse compliment for minhash, since unordered
-		this.mainHashes = new MinHashSketch(seq.getSquenceString(), kmerSize, numHashes, kmerFilter, false, repeatWeight);
+		SequenceSketch forward = new SequenceSketch(seq.getId(), seq.length(), sketches.x.x, sketches.x.y);
+		SequenceSketch reverse = null;
+		if (sketches.y!=null)
+			reverse = new SequenceSketch(seq.getId().complimentId(), seq.length(), sketches.y.x, sketches.y.y);
+		
+		return new Pair<>(forward, reverse);
+	}
+
+	/**
+	 * Returns the sketch with the ordered k-mers bit-packed, for storing in memory.
+	 */
+	public SequenceSketch pack()
+	{
+		if (this.orderedHashes.isPacked())
+			return this;
 		
-		//do not do reverse compliment
-		this.orderedHashes = new BottomOverlapSketch(seq.getSquenceString(), orderedKmerSize, orderedSketchSize, false);
+		return new SequenceSketch(this.id, this.sequenceLength, this.mainHashes, this.orderedHashes.pack());
 	}
 
 	public SequenceSketch createOffset(int offset)
@@ -29,49 +29,71 @@
  */
 package edu.umd.marbl.mhap.impl;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
-import java.io.EOFException;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import edu.umd.marbl.mhap.sketch.FrequencyCounts;
+import edu.umd.marbl.mhap.sketch.HashUtils;
+import edu.umd.marbl.mhap.sketch.MinHashMode;
+import edu.umd.marbl.mhap.sketch.MultiKmerSketcher;
+import edu.umd.marbl.mhap.sketch.SketchWorkspace;
 import edu.umd.marbl.mhap.sketch.ZeroNGramsFoundException;
-import edu.umd.marbl.mhap.utils.ReadBuffer;
-import edu.umd.marbl.mhap.utils.Utils;
+import edu.umd.marbl.mhap.utils.Pair;
+import edu.umd.marbl.mhap.utils.StageQueue;
 
 public class SequenceSketchStreamer
 {
-	private final DataInputStream buffInput;
 	private final FastaData fastaData;
+	private final SketchFileHeader header;
 	private final FrequencyCounts kmerFilter;
 	private final int kmerSize;
+	private final MappedSketchFile mappedFile;
 	private final int minOlapLength;
+	private final AtomicInteger nextBlock;
 	private final AtomicLong numberProcessed;
 	private final int numHashes;
 	private final int offset;
 	private final int orderedKmerSize;
 
 	private final int orderedSketchSize;
-	private boolean readClosed;
+	private int parseThreads;
+	private int queueSize;
 	private boolean doReverseCompliment;
+	private boolean fullyEnqueued;
 	private final boolean readingFasta;
 	private final double repeatWeight;
 	private final ConcurrentLinkedQueue<SequenceSketch> sequenceHashList;
+	private StageQueue<Sequence> sequenceQueue;
+	private final MultiKmerSketcher sketcher;
+	private volatile StageQueue<SequenceSketch> sketchQueue;
+	private int sketchThreads;
+	
+	public final static int DEFAULT_QUEUE_SIZE = 256;
 
-	public SequenceSketchStreamer(String file, int minOlapLength, int offset) throws FileNotFoundException
+	/**
+	 * @return the default number of parsing threads, a quarter of the total
+	 */
+	public static int defaultParseThreads(int numThreads)
+	{
+		return Math.max(1, numThreads/4);
+	}
+
+	/**
+	 * @return the default number of sketching threads, they share the total with the consumers of the sketches
+	 */
+	public static int defaultSketchThreads(int numThreads)
+	{
+		return Math.max(1, numThreads-numThreads/4);
+	}
+
+	public SequenceSketchStreamer(String file, int minOlapLength, int offset) throws IOException
 	{
 		this.fastaData = null;
 		this.readingFasta = false;
@@ -86,14 +108,36 @@ public class SequenceSketchStreamer
 		this.numHashes = 0;
 		this.orderedKmerSize = 0;
 		this.orderedSketchSize = 0;
-		this.readClosed = false;
 		this.offset = offset;
-
-		this.buffInput = new DataInputStream(new BufferedInputStream(new FileInputStream(file), Utils.BUFFER_BYTE_SIZE));
+		this.sketcher = null;
+
+		//the blocks of records are claimed by index, so the reading threads decode in parallel
+		this.mappedFile = new MappedSketchFile(file);
+		this.nextBlock = new AtomicInteger();
+		this.header = this.mappedFile.getHeader();
+		this.parseThreads = defaultParseThreads(Runtime.getRuntime().availableProcessors());
+		this.sketchThreads = defaultSketchThreads(Runtime.getRuntime().availableProcessors());
+		this.queueSize = DEFAULT_QUEUE_SIZE;
 	}
 
 	public SequenceSketchStreamer(String file, int minOlapLength, int kmerSize, int numHashes, int orderedKmerSize, int orderedSketchSize,
 			FrequencyCounts kmerFilter, boolean doReverseCompliment, double repeatWeight, int offset) throws IOException
+	{
+		this(file, minOlapLength, kmerSize, numHashes, orderedKmerSize, orderedSketchSize, kmerFilter, doReverseCompliment, repeatWeight, MinHashMode.CLASSIC, offset);
+	}
+
+	public SequenceSketchStreamer(String file, int minOlapLength, int kmerSize, int numHashes, int orderedKmerSize, int orderedSketchSize,
+			FrequencyCounts kmerFilter, boolean doReverseCompliment, double repeatWeight, MinHashMode minHashMode, int offset) throws IOException
+	{
+		this(file, minOlapLength, kmerSize, numHashes, orderedKmerSize, orderedSketchSize, kmerFilter, doReverseCompliment, repeatWeight, minHashMode, false, offset);
+	}
+
+	/**
+	 * @param canonical
+	 *            if true, the k-mers are hashed canonically, see MultiKmerSketcher
+	 */
+	public SequenceSketchStreamer(String file, int minOlapLength, int kmerSize, int numHashes, int orderedKmerSize, int orderedSketchSize,
+			FrequencyCounts kmerFilter, boolean doReverseCompliment, double repeatWeight, MinHashMode minHashMode, boolean canonical, int offset) throws IOException
 	{
 		this.fastaData = new FastaData(file, offset);
 		this.readingFasta = true;
@@ -108,129 +152,120 @@ public class SequenceSketchStreamer
 		this.numHashes = numHashes;
 		this.orderedKmerSize = orderedKmerSize;
 		this.orderedSketchSize = orderedSketchSize;
-		this.buffInput = null;
-		this.readClosed = false;
+		this.mappedFile = null;
+		this.nextBlock = null;
 		this.offset = offset;
+		this.sketcher = new MultiKmerSketcher(kmerSize, numHashes, orderedKmerSize, orderedSketchSize, kmerFilter, repeatWeight, minHashMode, canonical);
+		this.header = new SketchFileHeader(kmerSize, numHashes, orderedKmerSize, orderedSketchSize, minHashMode, HashUtils.USE_MURMUR_KMER_HASH,
+				kmerFilter==null ? 0L : kmerFilter.getFingerprint(), canonical);
+		this.parseThreads = defaultParseThreads(Runtime.getRuntime().availableProcessors());
+		this.sketchThreads = defaultSketchThreads(Runtime.getRuntime().availableProcessors());
+		this.queueSize = DEFAULT_QUEUE_SIZE;
 	}
 
-	public SequenceSketch dequeue(boolean fwdOnly, ReadBuffer buf) throws IOException
+	public SequenceSketch dequeue(boolean fwdOnly, SketchWorkspace workspace) throws IOException
 	{
-		enqueueUntilFound(fwdOnly, buf);
-
-		return this.sequenceHashList.poll();
+		// the sketches of a fully enqueued file come first
+		SequenceSketch seqHashes = this.sequenceHashList.poll();
+		if (seqHashes!=null)
+			return seqHashes;
+		
+		try
+		{
+			// only the first call starts the pipeline, the others should not take the monitor per sketch
+			StageQueue<SequenceSketch> queue = this.sketchQueue;
+			if (queue==null)
+				queue = startPipeline(fwdOnly);
+			
+			return queue.take();
+		}
+		catch (InterruptedException e)
+		{
+			throw new MhapRuntimeException("Interrupted while waiting for the next sketch.");
+		}
 	}
 	
-	private boolean enqueue(boolean fwdOnly, ReadBuffer buf) throws IOException, ZeroNGramsFoundException
+	/**
+	 * Reads all the sketches of the file into memory.
+	 */
+	public synchronized void enqueueFullFile(boolean fwdOnly) throws IOException
 	{
-		SequenceSketch seqHashes;
-		if (this.readingFasta)
+		StageQueue<SequenceSketch> queue = startPipeline(fwdOnly);
+		
+		try
 		{
-			Sequence seq;
-			do
-			{
-				seq = this.fastaData.dequeue();
-			}
-			while (seq!=null && seq.length()<this.minOlapLength);
-			
-			// compute the hashes
-			seqHashes = null;
-			if (seq != null)
-				seqHashes = getSketch(seq);
-
-			if (seqHashes == null)
-				return false;
-			
-			processAddition(seqHashes);
-
-			this.sequenceHashList.add(seqHashes);
-
-			// fasta files are all fwd
-			if (!fwdOnly)
-			{
-				// compute the hashes
-				seqHashes = getSketch(seq.getReverseCompliment());
-
+			SequenceSketch seqHashes;
+			while ((seqHashes = queue.take())!=null)
 				this.sequenceHashList.add(seqHashes);
-				processAddition(seqHashes);
-			}
+			
+			this.fullyEnqueued = true;
 		}
-		else
+		catch (InterruptedException e)
 		{
-			// read the binary file
-			seqHashes = readFromBinary(buf, fwdOnly);
-			while (seqHashes != null && fwdOnly && !seqHashes.getSequenceId().isForward() && seqHashes.getSequenceLength()<this.minOlapLength)
-			{
-				seqHashes = readFromBinary(buf, fwdOnly);
-			}
-
-			// do nothing and return
-			if (seqHashes == null)
-				return false;
-
-			processAddition(seqHashes);
-
-			this.sequenceHashList.add(seqHashes);
-
+			throw new MhapRuntimeException("Interrupted while reading the full file.");
 		}
-
-		return true;
 	}
-
-	public synchronized void enqueueFullFile(final boolean fwdOnly, int numThreads) throws IOException
+	
+	private void parseStage(StageQueue<Sequence> sequenceQueue, StageQueue<SequenceSketch> sketchQueue, boolean fwdOnly) throws IOException, InterruptedException
 	{
-		// figure out number of cores
-		ExecutorService execSvc = Executors.newFixedThreadPool(numThreads);
-
-		// for each thread create a task
-		for (int iter = 0; iter < numThreads; iter++)
+		if (this.readingFasta)
+		{
+			Sequence seq;
+			while ((seq = this.fastaData.dequeue())!=null)
+				if (seq.length()>=this.minOlapLength)
+					sequenceQueue.put(seq);
+			
+			sequenceQueue.producerDone();
+		}
+		else
 		{
-			Runnable task = new Runnable()
+			// claim the blocks of the binary file by index, they hold the finished sketches
+			int block;
+			while ((block = this.nextBlock.getAndIncrement())<this.mappedFile.numBlocks())
 			{
-				@Override
-				public void run()
+				for (SequenceSketch sketch : this.mappedFile.readBlock(block, this.offset, fwdOnly))
 				{
-					ReadBuffer buf = new ReadBuffer();
-
-					try
-					{
-						while (enqueueUntilFound(fwdOnly, buf))
-						{
-						}
-					}
-					catch (IOException e)
-					{
-						throw new MhapRuntimeException(e);
-					}
+					processAddition(sketch);
+					sketchQueue.put(sketch);
 				}
-			};
-
-			// enqueue the task
-			execSvc.execute(task);
-		}
-
-		// shutdown the service
-		execSvc.shutdown();
-		try
-		{
-			execSvc.awaitTermination(365L, TimeUnit.DAYS);
-		}
-		catch (InterruptedException e)
-		{
-			execSvc.shutdownNow();
-			throw new MhapRuntimeException("Unable to finish all tasks.");
+			}
+			
+			sketchQueue.producerDone();
 		}
 	}
-
-	private boolean enqueueUntilFound(boolean fwdOnly, ReadBuffer buf) throws IOException
+	
+	private void sketchStage(StageQueue<Sequence> sequenceQueue, StageQueue<SequenceSketch> sketchQueue, boolean fwdOnly) throws InterruptedException
 	{
-		boolean getNext = true;
-		boolean returnValue = false;
-		while(getNext)
+		SketchWorkspace workspace = new SketchWorkspace();
+		
+		Sequence seq;
+		while ((seq = sequenceQueue.take())!=null)
 		{
 			try
 			{
-				returnValue = enqueue(fwdOnly, buf);
-				getNext = false;
+				// fasta files are all fwd
+				if (fwdOnly)
+				{
+					SequenceSketch seqHashes = getSketch(seq, false, workspace);
+					
+					processAddition(seqHashes);
+					sketchQueue.put(seqHashes);
+				}
+				else
+				{
+					// both strands come from one pass over the sequence
+					Pair<SequenceSketch, SequenceSketch> sketches = SequenceSketch.sketchBothStrands(seq, this.sketcher, workspace);
+					
+					processAddition(sketches.x);
+					sketchQueue.put(sketches.x);
+					
+					// the forward sketch is kept, even if the reverse strand has no unfiltered k-mers
+					if (sketches.y==null)
+						throw new ZeroNGramsFoundException("Found zero unfiltered n-grams in the string.", seq.getReverseCompliment().getSquenceString());
+					
+					processAddition(sketches.y);
+					sketchQueue.put(sketches.y);
+				}
 			}
 			catch (ZeroNGramsFoundException e)
 			{
@@ -238,7 +273,59 @@ public class SequenceSketchStreamer
 			}
 		}
 		
-		return returnValue; 
+		sketchQueue.producerDone();
+	}
+	
+	/**
+	 * Starts the threads of the parsing and sketching stages on the first call. The stages are connected by bounded
+	 * queues, so a stage that gets ahead blocks instead of filling the memory.
+	 * 
+	 * @return the queue of the finished sketches
+	 */
+	private synchronized StageQueue<SequenceSketch> startPipeline(final boolean fwdOnly)
+	{
+		if (this.sketchQueue!=null)
+			return this.sketchQueue;
+		
+		int numSketchThreads = this.readingFasta ? this.sketchThreads : 0;
+		final StageQueue<Sequence> sequenceQueue = this.readingFasta ? new StageQueue<Sequence>("Parsed sequence", this.queueSize, this.parseThreads) : null;
+		final StageQueue<SequenceSketch> sketchQueue = new StageQueue<SequenceSketch>("Sketch", this.queueSize, this.readingFasta ? numSketchThreads : this.parseThreads);
+		
+		ExecutorService execSvc = Executors.newFixedThreadPool(this.parseThreads+numSketchThreads, runnable ->
+		{
+			Thread thread = new Thread(runnable, "sketch-pipeline");
+			thread.setDaemon(true);
+			return thread;
+		});
+		
+		for (int iter = 0; iter < this.parseThreads+numSketchThreads; iter++)
+		{
+			final boolean parsing = iter<this.parseThreads;
+			execSvc.execute(() ->
+			{
+				try
+				{
+					if (parsing)
+						parseStage(sequenceQueue, sketchQueue, fwdOnly);
+					else
+						sketchStage(sequenceQueue, sketchQueue, fwdOnly);
+				}
+				catch (Throwable e)
+				{
+					// stop the other stages, and hand the error to the consumers, also when out of memory
+					MhapRuntimeException failure = e instanceof MhapRuntimeException ? (MhapRuntimeException)e : new MhapRuntimeException(e);
+					if (sequenceQueue!=null)
+						sequenceQueue.fail(failure);
+					sketchQueue.fail(failure);
+				}
+			});
+		}
+		execSvc.shutdown();
+		
+		this.sequenceQueue = sequenceQueue;
+		this.sketchQueue = sketchQueue;
+		
+		return sketchQueue;
 	}
 
 	public Iterator<SequenceSketch> getDataIterator()
@@ -246,6 +333,25 @@ public class SequenceSketchStreamer
 		return this.sequenceHashList.iterator();
 	}
 
+	public SketchFileHeader getHeader()
+	{
+		return this.header;
+	}
+
+	/**
+	 * @param numThreads
+	 *            the total number of threads
+	 * @return the number of threads that should consume the sketches, the sketching threads take their share of the
+	 *         total unless the file was already read in full
+	 */
+	public synchronized int getConsumerThreads(int numThreads)
+	{
+		if (!this.readingFasta || this.fullyEnqueued)
+			return numThreads;
+		
+		return Math.max(1, numThreads-this.sketchThreads);
+	}
+
 	public int getFastaProcessed()
 	{
 		if (this.fastaData == null)
@@ -258,11 +364,30 @@ public class SequenceSketchStreamer
 	{
 		return this.numberProcessed.intValue();
 	}
+	
+	/**
+	 * @return the statistics of the queues between the stages, one line per queue
+	 */
+	public String getPipelineStats()
+	{
+		StringBuilder stats = new StringBuilder();
+		if (this.sequenceQueue!=null)
+			stats.append(this.sequenceQueue).append('\n');
+		if (this.sketchQueue!=null)
+			stats.append(this.sketchQueue).append('\n');
+		
+		return stats.toString();
+	}
 
 	public SequenceSketch getSketch(Sequence seq) throws ZeroNGramsFoundException
+	{
+		return getSketch(seq, false, new SketchWorkspace());
+	}
+
+	public SequenceSketch getSketch(Sequence seq, boolean reverseCompliment, SketchWorkspace workspace) throws ZeroNGramsFoundException
 	{
 		// compute the hashes
-		return new SequenceSketch(seq, this.kmerSize, this.numHashes, this.orderedKmerSize, this.orderedSketchSize, this.kmerFilter, this.doReverseCompliment, this.repeatWeight);
+		return new SequenceSketch(seq, reverseCompliment, this.sketcher, workspace);
 	}
 
 	protected void processAddition(SequenceSketch seqHashes)
@@ -275,63 +400,45 @@ public class SequenceSketchStreamer
 			System.err.println("Current # sequences loaded and processed from file: " + numProcessed + "...");
 	}
 
-	protected SequenceSketch readFromBinary(ReadBuffer buf, boolean fwdOnly) throws IOException
+	/**
+	 * Sets the number of threads of the stages, before the file is read.
+	 * 
+	 * @param parseThreads
+	 *            the number of threads that parse the sequences, or decode the blocks of a dat file
+	 * @param sketchThreads
+	 *            the number of threads that sketch the parsed sequences
+	 * @param queueSize
+	 *            the capacity of the queues between the stages
+	 */
+	public synchronized void setPipeline(int parseThreads, int sketchThreads, int queueSize)
 	{
-		byte[] byteArray = null;
-		synchronized (this.buffInput)
-		{
-			if (this.readClosed)
-				return null;
-
-			try
-			{
-				boolean keepReading = true;
-				while (keepReading)
-				{
-					byte isFwd = this.buffInput.readByte();
-
-					if (!fwdOnly || isFwd == 1)
-						keepReading = false;
-
-					// get the size in bytes
-					int byteSize = this.buffInput.readInt();
-
-					// allocate the array
-					byteArray = buf.getBuffer(byteSize);
-
-					// read that many bytes
-					this.buffInput.read(byteArray, 0, byteSize);
-				}
-			}
-			catch (EOFException e)
-			{
-				this.buffInput.close();
-				this.readClosed = true;
-
-				return null;
-			}
-		}
-
-		// get as byte array stream
-		SequenceSketch seqHashes = SequenceSketch.fromByteStream(new DataInputStream(
-				new ByteArrayInputStream(byteArray)), this.offset);
-
-		return seqHashes;
+		if (this.sketchQueue!=null)
+			throw new MhapRuntimeException("The pipeline was already started.");
+		
+		this.parseThreads = parseThreads;
+		this.sketchThreads = sketchThreads;
+		this.queueSize = queueSize;
 	}
 
-	public void writeToBinary(String file, final boolean fwdOnly, int numThreads) throws IOException
+	/**
+	 * Writes the sketches as a dat file of the current version.
+	 * 
+	 * @param compress
+	 *            if true, the blocks of the file are Deflate compressed by the writing threads
+	 */
+	public void writeToBinary(String file, final boolean fwdOnly, boolean compress, int numThreads) throws IOException
 	{
-		OutputStream output = null;
-		try
+		try (final SketchFileWriter writer = new SketchFileWriter(file, this.header.withFormat(SketchFileHeader.VERSION, compress)))
 		{
-			output = new BufferedOutputStream(new FileOutputStream(file), Utils.BUFFER_BYTE_SIZE);
-			final OutputStream finalOutput = output;
-
-			// figure out number of cores
-			ExecutorService execSvc = Executors.newFixedThreadPool(numThreads);
+			// figure out number of cores, the sketching threads take their share
+			int numWriters = getConsumerThreads(numThreads);
+			ExecutorService execSvc = Executors.newFixedThreadPool(numWriters);
+			
+			// the first failure of a writing thread, the executor would otherwise swallow it
+			final AtomicReference<Throwable> failure = new AtomicReference<>();
 
 			// for each thread create a task
-			for (int iter = 0; iter < numThreads; iter++)
+			for (int iter = 0; iter < numWriters; iter++)
 			{
 				Runnable task = new Runnable()
 				{
@@ -339,32 +446,24 @@ public class SequenceSketchStreamer
 					public void run()
 					{
 						SequenceSketch seqHashes;
-						ReadBuffer buf = new ReadBuffer();
+						SketchWorkspace workspace = new SketchWorkspace();
+						SketchFileWriter.BlockBuffer buffer = writer.newBuffer();
 
 						try
 						{
-							seqHashes = dequeue(fwdOnly, buf);
+							seqHashes = dequeue(fwdOnly, workspace);
 							while (seqHashes != null)
 							{
-								byte[] byteArray = seqHashes.getAsByteArray();
-								int arraySize = byteArray.length;
-								byte isFwd = seqHashes.getSequenceId().isForward() ? (byte) 1 : (byte) 0;
+								buffer.add(seqHashes);
 
-								// store the size as byte array
-								byte[] byteSize = ByteBuffer.allocate(5).put(isFwd).putInt(arraySize).array();
-
-								synchronized (finalOutput)
-								{
-									finalOutput.write(byteSize);
-									finalOutput.write(byteArray);
-								}
-
-								seqHashes = dequeue(fwdOnly, buf);
+								seqHashes = dequeue(fwdOnly, workspace);
 							}
+							
+							buffer.flush();
 						}
-						catch (IOException e)
+						catch (Throwable e)
 						{
-							throw new MhapRuntimeException(e);
+							failure.compareAndSet(null, e);
 						}
 					}
 				};
@@ -382,15 +481,16 @@ public class SequenceSketchStreamer
 			catch (InterruptedException e)
 			{
 				execSvc.shutdownNow();
+				writer.abort();
 				throw new MhapRuntimeException("Unable to finish all tasks.");
 			}
-
-			finalOutput.flush();
-		}
-		finally
-		{
-			if (output != null)
-				output.close();
+			
+			// leave the footer out, so the partial file is not read as complete
+			if (failure.get()!=null)
+			{
+				writer.abort();
+				throw new MhapRuntimeException("Unable to write the sketches to file "+file+".", failure.get());
+			}
 		}
 	}
 }
@@ -0,0 +1,276 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.impl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import edu.umd.marbl.mhap.sketch.MinHashMode;
+
+/**
+ * Sketching parameters stored at the start of a precomputed dat file. Files written before the header existed start
+ * directly with the first record, and are still read, but cannot be checked against the current settings.
+ * <p>
+ * Version 2 adds the fingerprint of the k-mer filter and the format flags, and its records are stored in blocks
+ * listed in a footer, see SketchFileWriter. Version 1 files are still read.
+ */
+public final class SketchFileHeader
+{
+	private final long filterFingerprint;
+	private final int flags;
+	private final int kmerSize;
+	private final MinHashMode minHashMode;
+	private final int numHashes;
+	private final int orderedKmerSize;
+	private final int orderedSketchSize;
+	private final boolean useMurmurHash;
+	private final int version;
+
+	// "MHAP", the first byte of a header-less file is always the 0/1 strand flag
+	public final static int MAGIC = 0x4D484150;
+	public final static int VERSION = 2;
+	
+	//the blocks of records are Deflate compressed
+	public final static int FLAG_DEFLATE = 1;
+	//the k-mers were hashed canonically, and only the forward strand is stored
+	public final static int FLAG_CANONICAL = 2;
+	
+	public static SketchFileHeader fromByteStream(DataInputStream input) throws IOException
+	{
+		input.mark(4);
+		
+		int magic;
+		try
+		{
+			magic = input.readInt();
+		}
+		catch (IOException e)
+		{
+			magic = 0;
+		}
+		
+		if (magic!=MAGIC)
+		{
+			input.reset();
+			return null;
+		}
+		
+		int version = input.readInt();
+		if (version<1 || version>VERSION)
+			throw new MhapRuntimeException("Unsupported dat file version "+version+", expected version "+VERSION+" or lower.");
+		
+		int kmerSize = input.readInt();
+		int numHashes = input.readInt();
+		int orderedKmerSize = input.readInt();
+		int orderedSketchSize = input.readInt();
+		MinHashMode minHashMode = MinHashMode.fromCode(input.readInt());
+		boolean useMurmurHash = input.readBoolean();
+		
+		long filterFingerprint = 0L;
+		int flags = 0;
+		if (version>=2)
+		{
+			filterFingerprint = input.readLong();
+			flags = input.readInt();
+		}
+		
+		return new SketchFileHeader(version, kmerSize, numHashes, orderedKmerSize, orderedSketchSize, minHashMode, useMurmurHash, filterFingerprint, flags);
+	}
+	
+	public SketchFileHeader(int kmerSize, int numHashes, int orderedKmerSize, int orderedSketchSize, MinHashMode minHashMode, boolean useMurmurHash)
+	{
+		this(kmerSize, numHashes, orderedKmerSize, orderedSketchSize, minHashMode, useMurmurHash, 0L);
+	}
+	
+	/**
+	 * @param filterFingerprint
+	 *            the FrequencyCounts fingerprint of the k-mer filter, or 0 if no filter is used
+	 */
+	public SketchFileHeader(int kmerSize, int numHashes, int orderedKmerSize, int orderedSketchSize, MinHashMode minHashMode, boolean useMurmurHash, 
+			long filterFingerprint)
+	{
+		this(kmerSize, numHashes, orderedKmerSize, orderedSketchSize, minHashMode, useMurmurHash, filterFingerprint, false);
+	}
+	
+	/**
+	 * @param canonical
+	 *            if the sketches use canonical k-mers, see --canonical-index
+	 */
+	public SketchFileHeader(int kmerSize, int numHashes, int orderedKmerSize, int orderedSketchSize, MinHashMode minHashMode, boolean useMurmurHash, 
+			long filterFingerprint, boolean canonical)
+	{
+		this(VERSION, kmerSize, numHashes, orderedKmerSize, orderedSketchSize, minHashMode, useMurmurHash, filterFingerprint, canonical ? FLAG_CANONICAL : 0);
+	}
+	
+	private SketchFileHeader(int version, int kmerSize, int numHashes, int orderedKmerSize, int orderedSketchSize, MinHashMode minHashMode, 
+			boolean useMurmurHash, long filterFingerprint, int flags)
+	{
+		this.version = version;
+		this.kmerSize = kmerSize;
+		this.numHashes = numHashes;
+		this.orderedKmerSize = orderedKmerSize;
+		this.orderedSketchSize = orderedSketchSize;
+		this.minHashMode = minHashMode;
+		this.useMurmurHash = useMurmurHash;
+		this.filterFingerprint = filterFingerprint;
+		this.flags = flags;
+	}
+	
+	/**
+	 * @return the size of the header in the file
+	 */
+	public int byteSize()
+	{
+		//magic, version, five int parameters and the hash flag, then the fingerprint and flags
+		return this.version>=2 ? 7*4+1+8+4 : 7*4+1;
+	}
+	
+	public void checkCompatible(SketchFileHeader fileHeader, String file)
+	{
+		//files without the flag were never sketched canonically
+		boolean fileCanonical = fileHeader!=null && fileHeader.isCanonical();
+		if (isCanonical()!=fileCanonical)
+			throw new MhapRuntimeException("File "+file+" was sketched "+(fileCanonical ? "with" : "without")+" --canonical-index, current settings differ.");
+		
+		if (fileHeader==null)
+			return;
+		
+		if (this.kmerSize!=fileHeader.kmerSize)
+			throw new MhapRuntimeException("File "+file+" was sketched with k-mer size "+fileHeader.kmerSize+", but current k-mer size is "+this.kmerSize+".");
+		if (this.numHashes!=fileHeader.numHashes)
+			throw new MhapRuntimeException("File "+file+" was sketched with "+fileHeader.numHashes+" hashes, but current number of hashes is "+this.numHashes+".");
+		if (this.orderedKmerSize!=fileHeader.orderedKmerSize)
+			throw new MhapRuntimeException("File "+file+" was sketched with ordered k-mer size "+fileHeader.orderedKmerSize+", but current ordered k-mer size is "+this.orderedKmerSize+".");
+		if (this.minHashMode!=fileHeader.minHashMode)
+			throw new MhapRuntimeException("File "+file+" was sketched with MinHash mode "+fileHeader.minHashMode+", but current MinHash mode is "+this.minHashMode+".");
+		if (this.useMurmurHash!=fileHeader.useMurmurHash)
+			throw new MhapRuntimeException("File "+file+" was sketched "+(fileHeader.useMurmurHash ? "with" : "without")+" --legacy-hash, current settings differ.");
+		
+		//version 1 files did not record the filter
+		if (this.version>=2 && fileHeader.version>=2 && this.filterFingerprint!=fileHeader.filterFingerprint)
+			throw new MhapRuntimeException("File "+file+" was sketched with a different k-mer filter (-f and its settings) than the current one.");
+	}
+
+	public long getFilterFingerprint()
+	{
+		return this.filterFingerprint;
+	}
+
+	public int getKmerSize()
+	{
+		return this.kmerSize;
+	}
+
+	public MinHashMode getMinHashMode()
+	{
+		return this.minHashMode;
+	}
+
+	public int getNumHashes()
+	{
+		return this.numHashes;
+	}
+
+	public int getOrderedKmerSize()
+	{
+		return this.orderedKmerSize;
+	}
+
+	public int getOrderedSketchSize()
+	{
+		return this.orderedSketchSize;
+	}
+	
+	public int getVersion()
+	{
+		return this.version;
+	}
+	
+	public boolean isCanonical()
+	{
+		return (this.flags & FLAG_CANONICAL)!=0;
+	}
+
+	public boolean isCompressed()
+	{
+		return (this.flags & FLAG_DEFLATE)!=0;
+	}
+
+	public boolean isMurmurHash()
+	{
+		return this.useMurmurHash;
+	}
+	
+	/**
+	 * @return the same parameters, written in the given file format version
+	 */
+	public SketchFileHeader withFormat(int version, boolean compressed)
+	{
+		if (version<1 || version>VERSION)
+			throw new MhapRuntimeException("Unsupported dat file version "+version+".");
+		if (compressed && version<2)
+			throw new MhapRuntimeException("Compression requires dat file version 2 or higher.");
+		if (isCanonical() && version<2)
+			throw new MhapRuntimeException("Canonical sketches require dat file version 2 or higher.");
+		
+		int flags = (this.flags & ~FLAG_DEFLATE) | (compressed ? FLAG_DEFLATE : 0);
+		return new SketchFileHeader(version, this.kmerSize, this.numHashes, this.orderedKmerSize, this.orderedSketchSize, this.minHashMode, 
+				this.useMurmurHash, this.filterFingerprint, flags);
+	}
+
+	public void write(DataOutputStream output) throws IOException
+	{
+		output.writeInt(MAGIC);
+		output.writeInt(this.version);
+		output.writeInt(this.kmerSize);
+		output.writeInt(this.numHashes);
+		output.writeInt(this.orderedKmerSize);
+		output.writeInt(this.orderedSketchSize);
+		output.writeInt(this.minHashMode.getCode());
+		output.writeBoolean(this.useMurmurHash);
+		
+		if (this.version>=2)
+		{
+			output.writeLong(this.filterFingerprint);
+			output.writeInt(this.flags);
+		}
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString()
+	{
+		return "SketchFileHeader [version=" + this.version + ", kmerSize=" + this.kmerSize + ", numHashes=" + this.numHashes + ", orderedKmerSize=" + this.orderedKmerSize
+				+ ", orderedSketchSize=" + this.orderedSketchSize + ", minHashMode=" + this.minHashMode + ", useMurmurHash=" + this.useMurmurHash 
+				+ ", filterFingerprint=" + this.filterFingerprint + ", compressed=" + isCompressed() + ", canonical=" + isCanonical() + "]";
+	}
+}
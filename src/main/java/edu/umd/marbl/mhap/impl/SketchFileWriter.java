@@ -0,0 +1,210 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.impl;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import edu.umd.marbl.mhap.utils.Utils;
+
+/**
+ * Writes the sketches of a precomputed dat file. Every record is a strand byte and the size of the record, followed
+ * by the SequenceSketch.
+ * <p>
+ * In version 2, every writing thread collects records in its own BlockBuffer, and compresses the block before it is
+ * appended to the file, so the compression runs in parallel. The file ends with the footer: the number of blocks,
+ * then for every block its file offset, stored size, uncompressed size and number of records, then the offset of the
+ * footer and FOOTER_MAGIC. Version 1 files are the records directly after the header.
+ */
+public final class SketchFileWriter implements Closeable
+{
+	/**
+	 * Records of a single writing thread, appended to the file as one block. Not thread safe.
+	 */
+	public final class BlockBuffer
+	{
+		private final ByteArrayOutputStream bytes;
+		private final Deflater deflater;
+		private int numRecords;
+		private final DataOutputStream output;
+		
+		private BlockBuffer()
+		{
+			this.bytes = new ByteArrayOutputStream(BLOCK_BYTE_SIZE+BLOCK_BYTE_SIZE/8);
+			this.output = new DataOutputStream(this.bytes);
+			this.deflater = SketchFileWriter.this.header.isCompressed() ? new Deflater(Deflater.BEST_SPEED) : null;
+			this.numRecords = 0;
+		}
+		
+		public void add(SequenceSketch sketch) throws IOException
+		{
+			byte[] record = sketch.getAsByteArray();
+			this.output.writeByte(sketch.getSequenceId().isForward() ? 1 : 0);
+			this.output.writeInt(record.length);
+			this.output.write(record);
+			this.numRecords++;
+			
+			if (this.bytes.size()>=BLOCK_BYTE_SIZE)
+				flush();
+		}
+		
+		/**
+		 * Appends the collected records to the file. Must be called after the last record.
+		 */
+		public void flush() throws IOException
+		{
+			if (this.numRecords==0)
+				return;
+			
+			byte[] block = this.bytes.toByteArray();
+			int rawSize = block.length;
+			int storedSize = rawSize;
+			if (this.deflater!=null)
+			{
+				this.deflater.reset();
+				this.deflater.setInput(block);
+				this.deflater.finish();
+				
+				byte[] compressed = new byte[rawSize+rawSize/100+64];
+				storedSize = 0;
+				while (!this.deflater.finished())
+				{
+					if (storedSize==compressed.length)
+						compressed = Arrays.copyOf(compressed, compressed.length*2);
+					storedSize += this.deflater.deflate(compressed, storedSize, compressed.length-storedSize);
+				}
+				block = compressed;
+			}
+			
+			writeBlock(block, storedSize, rawSize, this.numRecords);
+			
+			this.bytes.reset();
+			this.numRecords = 0;
+		}
+	}
+	
+	private boolean aborted;
+	private final IntArrayList blockRawSizes;
+	private final IntArrayList blockRecords;
+	private final LongArrayList blockOffsets;
+	private final IntArrayList blockStoredSizes;
+	private final SketchFileHeader header;
+	private final DataOutputStream output;
+	private long position;
+	
+	// "MHFT"
+	public final static int FOOTER_MAGIC = 0x4D484654;
+	//size of the offset and magic at the end of the file
+	public final static int FOOTER_TAIL_SIZE = 12;
+	//size of the footer entry of a block
+	public final static int FOOTER_ENTRY_SIZE = 20;
+	
+	private final static int BLOCK_BYTE_SIZE = 1<<20;
+	
+	/**
+	 * @param header
+	 *            the parameters and the format of the file
+	 */
+	public SketchFileWriter(String file, SketchFileHeader header) throws IOException
+	{
+		this.header = header;
+		this.output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), Utils.BUFFER_BYTE_SIZE));
+		this.blockOffsets = new LongArrayList();
+		this.blockStoredSizes = new IntArrayList();
+		this.blockRawSizes = new IntArrayList();
+		this.blockRecords = new IntArrayList();
+		this.aborted = false;
+		
+		header.write(this.output);
+		this.position = header.byteSize();
+	}
+	
+	/**
+	 * Marks the file as incomplete, close() then leaves out the footer, so a version 2 file is rejected as truncated.
+	 */
+	public synchronized void abort()
+	{
+		this.aborted = true;
+	}
+	
+	@Override
+	public synchronized void close() throws IOException
+	{
+		try
+		{
+			if (this.header.getVersion()>=2 && !this.aborted)
+			{
+				long footerOffset = this.position;
+				this.output.writeInt(this.blockOffsets.size());
+				for (int block = 0; block < this.blockOffsets.size(); block++)
+				{
+					this.output.writeLong(this.blockOffsets.getLong(block));
+					this.output.writeInt(this.blockStoredSizes.getInt(block));
+					this.output.writeInt(this.blockRawSizes.getInt(block));
+					this.output.writeInt(this.blockRecords.getInt(block));
+				}
+				this.output.writeLong(footerOffset);
+				this.output.writeInt(FOOTER_MAGIC);
+			}
+		}
+		finally
+		{
+			this.output.close();
+		}
+	}
+	
+	/**
+	 * @return a buffer for a single writing thread
+	 */
+	public BlockBuffer newBuffer()
+	{
+		return new BlockBuffer();
+	}
+	
+	private synchronized void writeBlock(byte[] block, int storedSize, int rawSize, int numRecords) throws IOException
+	{
+		this.output.write(block, 0, storedSize);
+		
+		this.blockOffsets.add(this.position);
+		this.blockStoredSizes.add(storedSize);
+		this.blockRawSizes.add(rawSize);
+		this.blockRecords.add(numRecords);
+		
+		this.position += storedSize;
+	}
+}
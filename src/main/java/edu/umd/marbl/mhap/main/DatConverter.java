@@ -0,0 +1,178 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.main;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import edu.umd.marbl.mhap.impl.MappedSketchFile;
+import edu.umd.marbl.mhap.impl.MhapRuntimeException;
+import edu.umd.marbl.mhap.impl.SequenceSketch;
+import edu.umd.marbl.mhap.impl.SketchFileHeader;
+import edu.umd.marbl.mhap.impl.SketchFileWriter;
+import edu.umd.marbl.mhap.sketch.MinHashMode;
+import edu.umd.marbl.mhap.utils.ParseOptions;
+
+/**
+ * Converts a precomputed dat file between the file format versions, for example to compress an existing file, or to
+ * use a file with an older MHAP release. The blocks are read and written by parallel threads, so the order of the
+ * records can change, which does not change the overlaps.
+ * <p>
+ * Header-less files, written by MHAP 2.1 and earlier, do not record how they were sketched, so the sketching parameters
+ * are given on the command line. Such files also do not record the k-mer filter, so a file sketched with -f should be
+ * converted to version 1, which does not check the filter when it is read.
+ */
+public final class DatConverter
+{
+	public static void main(String[] args) throws Exception
+	{
+		ParseOptions options = new ParseOptions();
+		options.addStartTextLine("Converts a precomputed dat file between the file format versions.");
+		options.addStartTextLine("\tUsage: java -cp <MHAP jar> edu.umd.marbl.mhap.main.DatConverter -i<input dat file> -o<output dat file>");
+		options.addOption("-i", "The dat file to convert.", "");
+		options.addOption("-o", "The converted dat file.", "");
+		options.addOption("--format-version", "[int], The file format version of the converted file.", SketchFileHeader.VERSION);
+		options.addOption("--compress-dat", "Deflate compress the blocks of the converted file, version 2 and higher only.", false);
+		options.addOption("--num-threads", "[int], Number of threads that convert the blocks.", Runtime.getRuntime().availableProcessors());
+		options.addOption("-k", "[int], Header-less input only. The k-mer size the file was sketched with.", MhapMain.DEFAULT_KMER_SIZE);
+		options.addOption("--num-hashes", "[int], Header-less input only. The number of min-mers the file was sketched with.", MhapMain.DEFAULT_NUM_WORDS);
+		options.addOption("--ordered-kmer-size", "[int], Header-less input only. The ordered k-mer size the file was sketched with.", MhapMain.DEFAULT_ORDERED_KMER_SIZE);
+		options.addOption("--ordered-sketch-size", "[int], Header-less input only. The ordered sketch size the file was sketched with.", MhapMain.DEFAULT_ORDERED_SKETCH_SIZE);
+		options.addOption("--minhash-mode", "[int], Header-less input only. The --minhash-mode the file was sketched with.", 0);
+		options.addOption("--rolling-hash", "Header-less input only. The file was sketched with the 2-bit rolling k-mer hash, instead of the murmur3 string hash of MHAP 2.1 and earlier.", false);
+		
+		if (!options.process(args))
+			System.exit(0);
+		
+		if (options.get("-i").getString().isEmpty() || options.get("-o").getString().isEmpty())
+		{
+			System.out.println("Please set the -i and -o options. See options below:");
+			System.out.println(options.helpMenuString());
+			System.exit(1);
+		}
+		
+		if (options.get("--num-threads").getInteger()<=0)
+		{
+			System.out.println("Number of threads must be positive.");
+			System.exit(1);
+		}
+		
+		if (options.get("--minhash-mode").getInteger()<0 || options.get("--minhash-mode").getInteger()>=MinHashMode.values().length)
+		{
+			System.out.println("The --minhash-mode parameter must be in [0,"+(MinHashMode.values().length-1)+"].");
+			System.exit(1);
+		}
+		
+		String inFile = options.get("-i").getString();
+		String outFile = options.get("-o").getString();
+		int version = options.get("--format-version").getInteger();
+		boolean compress = options.get("--compress-dat").getBoolean();
+		SketchFileHeader defaultHeader = new SketchFileHeader(options.get("-k").getInteger(), options.get("--num-hashes").getInteger(), 
+				options.get("--ordered-kmer-size").getInteger(), options.get("--ordered-sketch-size").getInteger(), 
+				MinHashMode.fromCode(options.get("--minhash-mode").getInteger()), !options.get("--rolling-hash").getBoolean());
+		
+		long startTime = System.nanoTime();
+		long numRecords = convert(inFile, outFile, defaultHeader, version, compress, options.get("--num-threads").getInteger());
+		
+		System.err.println("Converted "+numRecords+" records of "+inFile+" to version "+version+(compress ? " compressed" : "")+" file "+outFile+".");
+		System.err.println("Time (s): " + (System.nanoTime() - startTime)*1.0e-9);
+	}
+	
+	/**
+	 * @param defaultHeader
+	 *            the sketching parameters of a header-less input file, or null if the input must have a header
+	 */
+	public static long convert(String inFile, String outFile, SketchFileHeader defaultHeader, int version, boolean compress, int numThreads) throws IOException
+	{
+		final MappedSketchFile input = new MappedSketchFile(inFile);
+		SketchFileHeader header = input.getHeader();
+		if (header==null)
+		{
+			if (defaultHeader==null)
+				throw new MhapRuntimeException("File "+inFile+" has no header, the sketching parameters are unknown.");
+			
+			System.err.println("Warning, dat file "+inFile+" has no header, using the sketching parameters of the command line.");
+			header = defaultHeader;
+		}
+		
+		final AtomicInteger nextBlock = new AtomicInteger();
+		try (final SketchFileWriter writer = new SketchFileWriter(outFile, header.withFormat(version, compress)))
+		{
+			ExecutorService execSvc = Executors.newFixedThreadPool(numThreads);
+			
+			// the first failure of a converting thread, the executor would otherwise swallow it
+			final AtomicReference<Throwable> failure = new AtomicReference<>();
+			for (int iter = 0; iter < numThreads; iter++)
+			{
+				execSvc.execute(() ->
+				{
+					SketchFileWriter.BlockBuffer buffer = writer.newBuffer();
+					try
+					{
+						int block;
+						while ((block = nextBlock.getAndIncrement())<input.numBlocks())
+							for (SequenceSketch sketch : input.readBlock(block, 0, false))
+								buffer.add(sketch);
+						
+						buffer.flush();
+					}
+					catch (Throwable e)
+					{
+						failure.compareAndSet(null, e);
+					}
+				});
+			}
+			
+			execSvc.shutdown();
+			try
+			{
+				execSvc.awaitTermination(365L, TimeUnit.DAYS);
+			}
+			catch (InterruptedException e)
+			{
+				execSvc.shutdownNow();
+				writer.abort();
+				throw new MhapRuntimeException("Unable to finish all tasks.");
+			}
+			
+			// leave the footer out, so the partial file is not read as complete
+			if (failure.get()!=null)
+			{
+				writer.abort();
+				throw new MhapRuntimeException("Unable to convert file "+inFile+" to file "+outFile+".", failure.get());
+			}
+		}
+		
+		return input.size();
+	}
+}
@@ -751,13 +751,13 @@ public class EstimateROC {
 		Overlap ovl = this.ovlInfo.get(getOvlName(id, id2));
 		if (DEBUG) System.err.println("Aligning sequence " + ovl.id1 + " to " + ovl.id2 + " " + ovl.bfirst + " to " + ovl.bsecond + " and " + ovl.isFwd + " and " + ovl.afirst + " " + ovl.asecond);
 
-		String s1 = this.dataSeq[getSequenceId(ovl.id1)].getSquenceString().substring(ovl.afirst, ovl.asecond);
+		String s1 = this.dataSeq[getSequenceId(ovl.id1)].getKmer(ovl.afirst, ovl.asecond-ovl.afirst);
 		String s2 = null;
 		
 		if (ovl.isFwd) {
-			s2 = this.dataSeq[getSequenceId(ovl.id2)].getSquenceString().substring(ovl.bfirst, ovl.bsecond);
+			s2 = this.dataSeq[getSequenceId(ovl.id2)].getKmer(ovl.bfirst, ovl.bsecond-ovl.bfirst);
 		} else {
-			s2 = Utils.rc(this.dataSeq[getSequenceId(ovl.id2)].getSquenceString().substring(ovl.bfirst, ovl.bsecond));
+			s2 = Utils.rc(this.dataSeq[getSequenceId(ovl.id2)].getKmer(ovl.bfirst, ovl.bsecond-ovl.bfirst));
 		}
 		int ovlLen = Math.min(s1.length(), s2.length());
 		
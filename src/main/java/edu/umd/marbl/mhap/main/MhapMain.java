@@ -36,21 +36,31 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Locale;
+import edu.umd.marbl.mhap.impl.MappedMinHashIndex;
+import edu.umd.marbl.mhap.impl.MinHashBands;
 import edu.umd.marbl.mhap.impl.MhapRuntimeException;
 import edu.umd.marbl.mhap.impl.MinHashSearch;
 import edu.umd.marbl.mhap.impl.SequenceId;
 import edu.umd.marbl.mhap.impl.SequenceSketchStreamer;
+import edu.umd.marbl.mhap.impl.SketchFileHeader;
 import edu.umd.marbl.mhap.sketch.FrequencyCounts;
+import edu.umd.marbl.mhap.sketch.HashUtils;
+import edu.umd.marbl.mhap.sketch.MinHashMode;
 import edu.umd.marbl.mhap.utils.ParseOptions;
 import edu.umd.marbl.mhap.utils.Utils;
 
 public final class MhapMain
 {
 	private final double acceptScore;
+	private final MinHashBands bands;
+	private final boolean canonicalIndex;
+	private final boolean compactIndex;
+	private final boolean compressDat;
 	private final String inFile;
 	private final FrequencyCounts kmerFilter;
 	private final int kmerSize;
 	private final double maxShift;
+	private final MinHashMode minHashMode;
 	private final int minStoreLength;
 	private final int minOlapLength;
 	private final boolean noSelf;
@@ -59,7 +69,12 @@ public final class MhapMain
 	protected final int numThreads;
 	private final int orderedKmerSize;
 	private final int orderedSketchSize;
+	private final boolean packSketches;
+	private final int parseThreads;
 	private final String processFile;
+	private final int queueSize;
+	private final String saveIndexFile;
+	private final int sketchThreads;
 	private final String toFile;
 	private final double repeatWeight;
 	private final boolean doReverseCompliment;
@@ -72,7 +87,7 @@ public final class MhapMain
 
 	private static final double DEFAULT_FILTER_CUTOFF = 1.0e-5;
 
-	private static final int DEFAULT_KMER_SIZE = 16;
+	static final int DEFAULT_KMER_SIZE = 16;
 
 	private static final double DEFAULT_MAX_SHIFT_PERCENT = 0.2;
 	
@@ -84,11 +99,11 @@ public final class MhapMain
 
 	private static final int DEFAULT_NUM_THREADS = Runtime.getRuntime().availableProcessors();
 	
-	private static final int DEFAULT_NUM_WORDS = 512;
+	static final int DEFAULT_NUM_WORDS = 512;
 	
-	private static final int DEFAULT_ORDERED_KMER_SIZE = 12;
+	static final int DEFAULT_ORDERED_KMER_SIZE = 12;
 
-	private static final int DEFAULT_ORDERED_SKETCH_SIZE = 1536;
+	static final int DEFAULT_ORDERED_SKETCH_SIZE = 1536;
 
 	public static void main(String[] args) throws Exception
 	{
@@ -100,17 +115,21 @@ public final class MhapMain
 		options.addStartTextLine("\tVersion: "+MhapMain.class.getPackage().getImplementationVersion());		
 		options.addStartTextLine("\tUsage 1 (direct execution): java -server -Xmx<memory> -jar <MHAP jar> -s<fasta/dat from/self file> [-q<fasta/dat to file>] [-f<kmer filter list, must be sorted>]");
 		options.addStartTextLine("\tUsage 2 (generate precomputed binaries): java -server -Xmx<memory> -jar <MHAP jar> -p<directory of fasta files> -q <output directory> [-f<kmer filter list, must be sorted>]");
-		options.addOption("-s", "Usage 1 only. The FASTA or binary dat file (see Usage 2) of reads that will be stored in a box, and that all subsequent reads will be compared to.", "");
+		options.addOption("-s", "Usage 1 only. The FASTA or binary dat file (see Usage 2) of reads that will be stored in a box, and that all subsequent reads will be compared to. An index file ending in .idx (see --save-index) is opened directly, without reading and indexing the reads again.", "");
 		options.addOption("-q", "Usage 1: The FASTA file of reads, or a directory of files, that will be compared to the set of reads in the box (see -s). Usage 2: The output directory for the binary formatted dat files.", "");
 		options.addOption("-p", "Usage 2 only. The directory containing FASTA files that should be converted to binary format for storage.", "");
 		options.addOption("-f", "k-mer filter file used for filtering out highly repetative k-mers. Must be sorted in descending order of frequency (second column).", "");
 		options.addOption("-k", "[int], k-mer size used for MinHashing. The k-mer size for second stage filter is seperate, and can also be modified.", DEFAULT_KMER_SIZE);
 		options.addOption("--num-hashes", "[int], Number of min-mers to be used in MinHashing.", DEFAULT_NUM_WORDS);
+		options.addOption("--minhash-mode", "[int] 0) Classic MinHash, every k-mer is hashed by each of the --num-hashes hash functions. 1) One-permutation MinHash, every k-mer is hashed once into one of --num-hashes bins and empty bins are filled by densification, so sketching time does not depend on --num-hashes. 2) Consistent weighted sampling (ICWS), the real valued tf-idf weight of every k-mer is sampled in constant time per hash function, instead of repeating the hash function for every unit of weight. Precomputed dat files must use the same mode.", 0);
 		options.addOption("--threshold", "[double], The threshold cutoff for the second stage sort-merge filter. This is based on the identity score computed from the Jaccard distance of k-mers (size given by ordered-kmer-size) in the overlapping regions.", DEFAULT_OVERLAP_ACCEPT_SCORE);
 		options.addOption("--filter-threshold", "[double], The cutoff at which the k-mer in the k-mer filter file is considered repetitive. This value for a specific k-mer is specified in the second column in the filter file. If no filter file is provided, this option is ignored.", DEFAULT_FILTER_CUTOFF);
 		options.addOption("--max-shift", "[double], Region size to the left and right of the estimated overlap, as derived from the median shift and sequence length, where a k-mer matches are still considered valid. Second stage filter only.", DEFAULT_MAX_SHIFT_PERCENT);
 		options.addOption("--num-min-matches", "[int], Minimum # min-mer that must be shared before computing second stage filter. Any sequences below that value are considered non-overlapping.", DEFAULT_NUM_MIN_MATCHES);
 		options.addOption("--num-threads", "[int], nNumber of threads to use for computation. Typically set to #cores.", DEFAULT_NUM_THREADS);
+		options.addOption("--parse-threads", "[int], Number of threads that read and parse the FASTA/FASTQ files, or decode the dat files. They hand the reads to the sketching threads through a bounded queue. 0 uses a quarter of --num-threads, at least 1.", 0);
+		options.addOption("--sketch-threads", "[int], Number of threads that sketch the parsed reads, and hand the sketches to the indexing or searching threads through a bounded queue. The sketching threads are taken out of --num-threads, the rest index or search the sketches. 0 uses three quarters of --num-threads, at least 1.", 0);
+		options.addOption("--queue-size", "[int], Capacity of the queues between the parsing, sketching and searching threads. The time each stage waited on its queues is reported after each file.", SequenceSketchStreamer.DEFAULT_QUEUE_SIZE);
 		options.addOption("--repeat-weight", "[double] Repeat suppression strength for tf-idf weighing. <0.0 do unweighted MinHash (version 1.0), >=1.0 do only the tf weighing. To perform no idf weighting, do no supply -f option. ", DEFAULT_REPEAT_WEIGHT);
 		options.addOption("--repeat-idf-scale", "[double] The upper range of the idf (from tf-idf) scale. The full scale will be [1,X], where X is the parameter.", DEFAULT_REPEAT_IDF_SCALE);
 		options.addOption("--ordered-kmer-size", "[int] The size of k-mers used in the ordered second stage filter.", DEFAULT_ORDERED_KMER_SIZE);
@@ -122,6 +141,14 @@ public final class MhapMain
 		options.addOption("--suppress-noise", "[int] 0) Does nothing, 1) completely removes any k-mers not specified in the filter file, 2) suppresses k-mers not specified in the filter file, similar to repeats. ", 0);
 		options.addOption("--no-tf", "Do not perform the tf weighing, in the tf-idf weighing.", false);
 		options.addOption("--no-rc", "Do not store or do comparison of the reverse compliment strings.", false);
+		options.addOption("--compress-dat", "Usage 2 only. Deflate compress the blocks of the dat files, in parallel by the writing threads. Compressed files are smaller but take longer to load.", false);
+		options.addOption("--compact-index", "Store the MinHash index of the box as flat primitive arrays, built after all the reads in the box are loaded. Uses a fraction of the memory of the default index.", false);
+		options.addOption("--canonical-index", "Hash every k-mer as the smaller of itself and its reverse compliment, so each read of the box is stored and indexed once instead of once per strand. The strand of a match is found by scoring both strands in the second stage. Halves the memory of the index. Dat files and saved indexes must be computed with the same setting.", false);
+		options.addOption("--pack-sketches", "Store the ordered k-mers of the reads in the box bit-packed, decoded on the fly when compared in the second stage. Halves the memory of the second stage sketches, at some cost in scoring time.", false);
+		options.addOption("--lsh-jaccard", "[double], Index bands of min-hashes instead of the individual min-hashes, with the number of bands and min-hashes per band chosen so reads with this MinHash Jaccard similarity share a band with probability --lsh-sensitivity. A read sharing a single band is compared in the second stage, and --num-min-matches is ignored. 0 disables banding.", 0.0);
+		options.addOption("--lsh-sensitivity", "[double], The probability that two reads with the --lsh-jaccard similarity share a band. Ignored if banding is disabled.", 0.95);
+		options.addOption("--save-index", "Usage 1 only. Write the index of the box (-s) to the given file. Later runs can pass the file to -s to memory-map the index instead of rebuilding it. The file must end in .idx.", "");
+		options.addOption("--legacy-hash", "Hash k-mers with the murmur3 string hash of MHAP 2.1 and earlier, instead of the 2-bit rolling hash. Required when reusing dat files precomputed by those versions. k-mers with ambiguous bases are only skipped by the rolling hash.", false);
 		options.addOption("--settings", "Set all unset parameters for the default settings. Same defaults are applied to Nanopore and Pacbio reads. 0) None, 1) Default, 2) Fast, 3) Sensitive.", 0);
 		
 		if (!options.process(args))
@@ -240,6 +267,18 @@ public final class MhapMain
 			System.exit(1);
 		}
 		
+		if (!options.get("--save-index").getString().isEmpty() && !options.get("--save-index").getString().endsWith(".idx"))
+		{
+			System.out.println("The --save-index file must end in .idx.");
+			System.exit(1);
+		}
+		
+		if (options.get("--canonical-index").getBoolean() && options.get("--no-rc").getBoolean())
+		{
+			System.out.println("The --canonical-index option always compares both strands, and can not be used with --no-rc.");
+			System.exit(1);
+		}
+		
 		//check range
 		if (options.get("--num-threads").getInteger()<=0)
 		{
@@ -247,6 +286,13 @@ public final class MhapMain
 			System.exit(1);
 		}
 
+		//check range
+		if (options.get("--parse-threads").getInteger()<0 || options.get("--sketch-threads").getInteger()<0 || options.get("--queue-size").getInteger()<=0)
+		{
+			System.out.println("Number of parsing and sketching threads must be >=0, and the queue size positive.");
+			System.exit(1);
+		}
+
 		//check range
 		if (options.get("-k").getInteger()<=0)
 		{
@@ -289,6 +335,20 @@ public final class MhapMain
 			System.exit(1);
 		}
 
+		//check range
+		if (options.get("--lsh-jaccard").getDouble()<0.0 || options.get("--lsh-jaccard").getDouble()>=1.0)
+		{
+			System.out.println("The --lsh-jaccard parameter must be in [0,1).");
+			System.exit(1);
+		}
+
+		//check range
+		if (options.get("--lsh-sensitivity").getDouble()<=0.0 || options.get("--lsh-sensitivity").getDouble()>=1.0)
+		{
+			System.out.println("The --lsh-sensitivity parameter must be in (0,1).");
+			System.exit(1);
+		}
+
 		//check range
 		if (options.get("--suppress-noise").getInteger()<0 || options.get("--suppress-noise").getInteger()>2)
 		{
@@ -296,6 +356,13 @@ public final class MhapMain
 			System.exit(1);
 		}
 
+		//check range
+		if (options.get("--minhash-mode").getInteger()<0 || options.get("--minhash-mode").getInteger()>=MinHashMode.values().length)
+		{
+			System.out.println("The --minhash-mode parameter must be in [0,"+(MinHashMode.values().length-1)+"].");
+			System.exit(1);
+		}
+
 		//check other options
 		//TODO move into the class
 		if (options.get("--store-full-id").getBoolean())
@@ -303,6 +370,8 @@ public final class MhapMain
 		else
 			SequenceId.STORE_FULL_ID = false;
 
+		HashUtils.USE_MURMUR_KMER_HASH = options.get("--legacy-hash").getBoolean();
+
 		
 		//printing the options used
 		System.err.println("Running with these settings:");
@@ -321,10 +390,15 @@ public final class MhapMain
 		this.processFile = options.get("-p").getString();
 		this.inFile = options.get("-s").getString();
 		this.toFile = options.get("-q").getString();
+		this.saveIndexFile = options.get("--save-index").getString();
 		this.noSelf = options.get("--no-self").getBoolean();
 		this.numThreads = options.get("--num-threads").getInteger();
+		this.parseThreads = options.get("--parse-threads").getInteger()>0 ? options.get("--parse-threads").getInteger() : SequenceSketchStreamer.defaultParseThreads(this.numThreads);
+		this.sketchThreads = options.get("--sketch-threads").getInteger()>0 ? options.get("--sketch-threads").getInteger() : SequenceSketchStreamer.defaultSketchThreads(this.numThreads);
+		this.queueSize = options.get("--queue-size").getInteger();
 		
 		this.numHashes = options.get("--num-hashes").getInteger();
+		this.minHashMode = MinHashMode.fromCode(options.get("--minhash-mode").getInteger());
 		this.kmerSize = options.get("-k").getInteger();
 		this.numMinMatches = options.get("--num-min-matches").getInteger();
 		this.minStoreLength = options.get("--min-store-length").getInteger();
@@ -335,6 +409,19 @@ public final class MhapMain
 		this.orderedKmerSize = options.get("--ordered-kmer-size").getInteger();
 		this.orderedSketchSize = options.get("--ordered-sketch-size").getInteger();
 		this.doReverseCompliment = !options.get("--no-rc").getBoolean();
+		this.canonicalIndex = options.get("--canonical-index").getBoolean();
+		this.compactIndex = options.get("--compact-index").getBoolean();
+		this.compressDat = options.get("--compress-dat").getBoolean();
+		this.packSketches = options.get("--pack-sketches").getBoolean();
+		
+		double lshJaccard = options.get("--lsh-jaccard").getDouble();
+		if (lshJaccard>0.0)
+		{
+			this.bands = MinHashBands.fromJaccard(this.numHashes, lshJaccard, options.get("--lsh-sensitivity").getDouble());
+			System.err.println("Using "+this.bands+", probability of sharing a band at Jaccard "+lshJaccard+" is "+this.bands.hitProbability(lshJaccard)+".");
+		}
+		else
+			this.bands = null;
 		
 		// read in the kmer filter set
 		String filterFile = options.get("-f").getString();
@@ -438,9 +525,11 @@ public final class MhapMain
 				outputString = toDirectory.getPath()+File.separator+outputString+".dat";
 				
 				//store the file to disk
-				seqStreamer.writeToBinary(outputString, false, this.numThreads);
+				//canonical sketches of both strands are the same
+				seqStreamer.writeToBinary(outputString, this.canonicalIndex, this.compressDat, this.numThreads);
 				
 				System.err.println("Processed "+seqStreamer.getNumberProcessed()+" sequences (fwd and rev).");
+				System.err.print(seqStreamer.getPipelineStats());
 				System.err.println("Read, hashed, and stored file "+pf.getPath()+" to "+outputString+".");
 				System.err.println("Time (s): " + (System.nanoTime() - startTime)*1.0e-9);
 			}
@@ -456,12 +545,34 @@ public final class MhapMain
 		int seqNumberProcessed = 0;
 				
 		//create search object
-		SequenceSketchStreamer seqStreamer = getSequenceHashStreamer(this.inFile, seqNumberProcessed);
-		MinHashSearch hashSearch = getMatchSearch(seqStreamer);
-
-		seqNumberProcessed += seqStreamer.getNumberProcessed()/2;
-		System.err.println("Processed "+seqStreamer.getNumberProcessed()+" unique sequences (fwd and rev).");
-		System.err.println("Time (s) to read and hash from file: " + (System.nanoTime() - processTime)*1.0e-9);
+		SequenceSketchStreamer seqStreamer;
+		MinHashSearch hashSearch;
+		if (this.inFile.endsWith(".idx"))
+		{
+			MappedMinHashIndex index = new MappedMinHashIndex(this.inFile);
+			getSketchFileHeader().checkCompatible(index.getHeader(), this.inFile);
+			hashSearch = new MinHashSearch(index, this.numMinMatches, this.numThreads, false, this.minStoreLength, this.maxShift, this.acceptScore);
+			
+			seqNumberProcessed += index.getNumberProcessed()/(this.canonicalIndex ? 1 : 2);
+			System.err.println("Time (s) to open index file: " + (System.nanoTime() - processTime)*1.0e-9);
+		}
+		else
+		{
+			seqStreamer = getSequenceHashStreamer(this.inFile, seqNumberProcessed);
+			hashSearch = getMatchSearch(seqStreamer);
+	
+			seqNumberProcessed += seqStreamer.getNumberProcessed()/(this.canonicalIndex ? 1 : 2);
+			System.err.println("Processed "+seqStreamer.getNumberProcessed()+" unique sequences (fwd and rev).");
+			System.err.print(seqStreamer.getPipelineStats());
+			System.err.println("Time (s) to read and hash from file: " + (System.nanoTime() - processTime)*1.0e-9);
+			
+			if (!this.saveIndexFile.isEmpty())
+			{
+				startTime = System.nanoTime();
+				hashSearch.saveIndex(this.saveIndexFile, getSketchFileHeader(), seqStreamer.getNumberProcessed());
+				System.err.println("Time (s) to write index file "+this.saveIndexFile+": " + (System.nanoTime() - startTime)*1.0e-9);
+			}
+		}
 
 		long startTotalScoringTime = System.nanoTime();
 
@@ -536,6 +647,7 @@ public final class MhapMain
 				
 				seqNumberProcessed += seqStreamer.getNumberProcessed();
 				System.err.println("Processed "+seqStreamer.getNumberProcessed()+" to sequences.");
+				System.err.print(seqStreamer.getPipelineStats());
 				System.err.println("Time (s) to score, hash to-file, and output: " + (System.nanoTime() - startTime)*1.0e-9);
 			}
 		}
@@ -554,17 +666,33 @@ public final class MhapMain
 	public MinHashSearch getMatchSearch(SequenceSketchStreamer hashStreamer) throws IOException
 	{
 		return new MinHashSearch(hashStreamer, this.numHashes, this.numMinMatches, this.numThreads, false,
-				this.minStoreLength, this.maxShift, this.acceptScore, this.doReverseCompliment);
+				this.minStoreLength, this.maxShift, this.acceptScore, this.compactIndex, this.bands, this.packSketches, this.canonicalIndex);
+	}
+	
+	public SketchFileHeader getSketchFileHeader()
+	{
+		return new SketchFileHeader(this.kmerSize, this.numHashes, this.orderedKmerSize, this.orderedSketchSize, this.minHashMode, HashUtils.USE_MURMUR_KMER_HASH,
+				this.kmerFilter==null ? 0L : this.kmerFilter.getFingerprint(), this.canonicalIndex);
 	}
 	
 	public SequenceSketchStreamer getSequenceHashStreamer(String file, int offset) throws IOException
 	{
 		SequenceSketchStreamer seqStreamer;
 		if (file.endsWith(".dat"))
+		{
 			seqStreamer = new SequenceSketchStreamer(file, this.minOlapLength, offset);
+			
+			//make sure the file was sketched the same way as the rest
+			if (seqStreamer.getHeader()==null)
+				System.err.println("Warning, dat file "+file+" has no header, assuming it was computed with the current settings.");
+			else
+				getSketchFileHeader().checkCompatible(seqStreamer.getHeader(), file);
+		}
 		else
 			seqStreamer = new SequenceSketchStreamer(file, this.minOlapLength, this.kmerSize, this.numHashes,
-					this.orderedKmerSize, this.orderedSketchSize, this.kmerFilter, this.doReverseCompliment, this.repeatWeight, offset);
+					this.orderedKmerSize, this.orderedSketchSize, this.kmerFilter, this.doReverseCompliment, this.repeatWeight, this.minHashMode, this.canonicalIndex, offset);
+		
+		seqStreamer.setPipeline(this.parseThreads, this.sketchThreads, this.queueSize);
 
 		return seqStreamer;
 	}
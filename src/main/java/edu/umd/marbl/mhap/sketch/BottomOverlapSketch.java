@@ -29,13 +29,13 @@
  */
 package edu.umd.marbl.mhap.sketch;
 
-import it.unimi.dsi.fastutil.ints.IntArrays;
-
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 import java.util.Arrays;
 
 import edu.umd.marbl.mhap.impl.OverlapInfo;
@@ -45,13 +45,13 @@ public final class BottomOverlapSketch
 {
 	private final static class EdgeData
 	{
-		public final int a1;
-		public final int a2;
-		public final int b1;
-		public final int b2;
-		public final int count;
+		public int a1;
+		public int a2;
+		public int b1;
+		public int b2;
+		public int count;
 		
-		public EdgeData(int a1, int a2, int b1, int b2, int count)
+		public void set(int a1, int a2, int b1, int b2, int count)
 		{
 			this.a1 = a1;
 			this.a2 = a2;
@@ -65,23 +65,47 @@ public final class BottomOverlapSketch
 	{
 		private int absMaxShiftInOverlap;
 		private int count; 
-		private final double maxShiftPercent;
+		private final EdgeData edges;
+		private double maxShiftPercent;
+		private int[] medianBuffer;
 		private int medianShift;
 		private boolean needRecompute;
 		public int[] pos1Index;
 		public int[] pos2Index;
 		public int[] posShift;
-		private final int seqLength1;
-		private final int seqLength2;
+		private int seqLength1;
+		private int seqLength2;
 
 		public MatchData(BottomOverlapSketch o1, BottomOverlapSketch o2, double maxShiftPercent)
+		{
+			this();
+			init(o1, o2, maxShiftPercent);
+		}
+		
+		MatchData()
+		{
+			this.edges = new EdgeData();
+			this.medianBuffer = new int[0];
+			this.posShift = new int[0];
+			this.pos1Index = new int[0];
+			this.pos2Index = new int[0];
+		}
+		
+		/**
+		 * Prepares the match data for a new pair of sketches, the buffers are only reallocated if too small.
+		 */
+		void init(BottomOverlapSketch o1, BottomOverlapSketch o2, double maxShiftPercent)
 		{
 			this.seqLength1 = o1.getSequenceLength();
 			this.seqLength2 = o2.getSequenceLength();
 			
-			this.posShift = new int[Math.max(o1.size(), o2.size())/4+1];
-			this.pos1Index = new int[posShift.length];
-			this.pos2Index = new int[posShift.length];
+			int capacity = Math.max(o1.size(), o2.size())/4+1;
+			if (this.posShift.length<capacity)
+			{
+				this.posShift = new int[capacity];
+				this.pos1Index = new int[capacity];
+				this.pos2Index = new int[capacity];
+			}
 			
 			this.maxShiftPercent = maxShiftPercent;
 			reset();
@@ -133,7 +157,8 @@ public final class BottomOverlapSketch
 			int b1 = Math.max(0, (int) Math.round((double)(validCount * leftEdge2 - rightEdge2) / (double) (validCount - 1)));
 			int b2 = Math.min(this.seqLength2, (int) Math.round((double)(validCount * rightEdge2 - leftEdge2) / (double) (validCount - 1)));
 			
-			return new EdgeData(a1, a2, b1, b2, validCount);
+			this.edges.set(a1, a2, b1, b2, validCount);
+			return this.edges;
 		}
 		
 		public int getAbsMaxShift()
@@ -194,7 +219,11 @@ public final class BottomOverlapSketch
 			{
 				if (this.count>0)
 				{
-					this.medianShift = Utils.quickSelect(Arrays.copyOf(this.posShift, this.count), this.count / 2, this.count);
+					//select on a copy, the order of the shifts is still needed
+					if (this.medianBuffer.length<this.count)
+						this.medianBuffer = new int[this.posShift.length];
+					System.arraycopy(this.posShift, 0, this.medianBuffer, 0, this.count);
+					this.medianShift = Utils.quickSelect(this.medianBuffer, this.count / 2, this.count);
 					
 					// get the actual overlap size
 					int leftPosition = Math.max(0, -this.medianShift);
@@ -297,18 +326,25 @@ public final class BottomOverlapSketch
 		}
 	}
 	
+	//the bottom-k k-mers sorted by hash and then position, as parallel arrays, or null if packed
+	private final int[] hashes;
 	private final int kmerSize;
-	private final int[][] orderedHashes;
+	//a reverse strand view of canonical k-mers, see reverseStrandView()
+	private final boolean mirrored;
+	//the same k-mers bit-packed, or null if stored in the arrays
+	private final PackedKmerArray packed;
+	private final int[] positions;
 	private final int seqLength;
 
-	private static double computeKBottomSketchJaccard(int[][] seq1Hashes, int[][] seq2Hashes, int medianShift, int absMaxShiftInOverlap, int a1, int a2, int b1, int b2)
+	private static double computeKBottomSketchJaccard(int[] seq1Hashes, int[] seq1Positions, int seq1Size, BottomOverlapSketch seq2, int a1, int a2, int b1, int b2,
+			OverlapWorkspace workspace)
 	{
 		//get k for first string
 		int s1 = 0;
-		int[][] array1 = new int[seq1Hashes.length][];
-		for (int i=0; i<seq1Hashes.length; i++)
+		int[] array1 = workspace.filteredHashes1(seq1Size);
+		for (int i=0; i<seq1Size; i++)
 		{
-			int pos = seq1Hashes[i][1];
+			int pos = seq1Positions[i];
 			if (pos >= a1 && pos <= a2)
 			{
 				array1[s1] = seq1Hashes[i];
@@ -316,16 +352,33 @@ public final class BottomOverlapSketch
 			}
 		}
 		
-		//get k for second string
+		//get k for second string, a packed sketch is decoded while filtering
 		int s2 = 0;
-		int[][] array2 = new int[seq2Hashes.length][];
-		for (int j=0; j<seq2Hashes.length; j++)
+		int[] array2 = workspace.filteredHashes2(seq2.size());
+		if (seq2.packed!=null)
 		{
-			int pos = seq2Hashes[j][1];
-			if (pos >= b1 && pos <= b2)
+			PackedKmerArray.Cursor cursor = workspace.cursor();
+			cursor.reset(seq2.packed);
+			while (cursor.next())
 			{
-				array2[s2] = seq2Hashes[j];
-				s2++;
+				int pos = seq2.mirrored ? seq2.seqLength-1-cursor.position : cursor.position;
+				if (pos >= b1 && pos <= b2)
+				{
+					array2[s2] = cursor.hash;
+					s2++;
+				}
+			}
+		}
+		else
+		{
+			for (int j=0; j<seq2.hashes.length; j++)
+			{
+				int pos = seq2.mirrored ? seq2.seqLength-1-seq2.positions[j] : seq2.positions[j];
+				if (pos >= b1 && pos <= b2)
+				{
+					array2[s2] = seq2.hashes[j];
+					s2++;
+				}
 			}
 		}
 		
@@ -343,10 +396,10 @@ public final class BottomOverlapSketch
 		int unionCount = 0;
 		while (unionCount<k)
 		{
-			if (array1[i][0]<array2[j][0])
+			if (array1[i]<array2[j])
 				i++;
 			else
-			if (array1[i][0]>array2[j][0])
+			if (array1[i]>array2[j])
 				j++;
 			else
 			{
@@ -363,6 +416,29 @@ public final class BottomOverlapSketch
 		return score;
 	}
 
+	/**
+	 * Decodes the sketch written by getAsByteArray() at the position of the buffer, and moves the position past it.
+	 */
+	public final static BottomOverlapSketch fromByteBuffer(ByteBuffer buffer)
+	{
+		int seqLength = buffer.getInt();
+		int kmerSize = buffer.getInt();
+		int hashLength = buffer.getInt();
+
+		int[] hashes = new int[hashLength];
+		int[] positions = new int[hashLength];
+		
+		IntBuffer pairs = buffer.asIntBuffer();
+		for (int iter = 0; iter < hashLength; iter++)
+		{
+			hashes[iter] = pairs.get();
+			positions[iter] = pairs.get();
+		}
+		buffer.position(buffer.position()+8*hashLength);
+
+		return new BottomOverlapSketch(seqLength, kmerSize, hashes, positions);
+	}
+
 	public final static BottomOverlapSketch fromByteStream(DataInputStream input) throws IOException
 	{
 		try
@@ -371,15 +447,16 @@ public final class BottomOverlapSketch
 			int kmerSize = input.readInt();
 			int hashLength = input.readInt();
 
-			int[][] orderedHashes = new int[hashLength][2];
+			int[] hashes = new int[hashLength];
+			int[] positions = new int[hashLength];
 
 			for (int iter = 0; iter < hashLength; iter++)
 			{
-				orderedHashes[iter][0] = input.readInt();
-				orderedHashes[iter][1] = input.readInt();
+				hashes[iter] = input.readInt();
+				positions[iter] = input.readInt();
 			}
 
-			return new BottomOverlapSketch(seqLength, kmerSize, orderedHashes);
+			return new BottomOverlapSketch(seqLength, kmerSize, hashes, positions);
 
 		}
 		catch (EOFException e)
@@ -396,16 +473,13 @@ public final class BottomOverlapSketch
 
 	private static void recordMatchingKmers(
 			MatchData matchData, 
-			int[][] seq1KmerHashes, 
-			int[][] seq2KmerHashes,
-			int repeat)
+			int[] seq1KmerHashes, 
+			int[] seq1KmerPositions, 
+			int seq1Size,
+			BottomOverlapSketch seq2,
+			OverlapWorkspace workspace,
+			OverlapWorkspace.QueryTable queryTable)
 	{
-		// init the loop storage
-		int hash1;
-		int hash2;
-		int pos1;
-		int pos2;
-		
 		// init the borders
 		int medianShift = matchData.getMedianShift();
 		int absMaxShift = matchData.getAbsMaxShift();
@@ -414,30 +488,139 @@ public final class BottomOverlapSketch
 		int valid1Upper = matchData.valid1Upper();
 		int valid2Upper = matchData.valid2Upper();
 		
-		// init counters
-		int i1 = 0;
-		int i2 = 0;
-		
 		//reset the data, redo the shifts
 		matchData.reset();
 		
-		// perform merge operation to get the shift and the kmer count
-		while (true)
+		// a packed second sketch is decoded run by run, without expanding the whole sketch
+		PackedKmerArray.Cursor cursor = null;
+		int[] run2Positions = null;
+		boolean hasNext2;
+		if (seq2.packed!=null)
+		{
+			cursor = workspace.cursor();
+			cursor.reset(seq2.packed);
+			run2Positions = workspace.runPositions(seq2.size());
+			hasNext2 = cursor.next();
+		}
+		else
+		{
+			if (seq2.mirrored)
+				run2Positions = workspace.runPositions(seq2.size());
+			hasNext2 = seq2.hashes.length>0;
+		}
+		
+		// only k-mers with the same hash can match, so match the runs of equal hashes in increasing hash order
+		int i1 = 0;
+		int i2 = 0;
+		while (i1<seq1Size && hasNext2)
 		{
-			if (i1>=seq1KmerHashes.length)
-				break;
-			if (i2>=seq2KmerHashes.length)
-				break;
+			// get the next run of the second sequence
+			int hash2;
+			int[] seq2KmerPositions;
+			int run2Start;
+			int run2End;
+			if (cursor!=null)
+			{
+				hash2 = cursor.hash;
+				run2End = 0;
+				do
+				{
+					run2Positions[run2End++] = cursor.position;
+					hasNext2 = cursor.next();
+				}
+				while (hasNext2 && cursor.hash==hash2);
+
+				seq2KmerPositions = run2Positions;
+				run2Start = 0;
+			}
+			else
+			{
+				hash2 = seq2.hashes[i2];
+				run2End = i2+1;
+				while (run2End<seq2.hashes.length && seq2.hashes[run2End]==hash2)
+					run2End++;
+				
+				seq2KmerPositions = seq2.positions;
+				run2Start = i2;
+				i2 = run2End;
+				hasNext2 = i2<seq2.hashes.length;
+			}
+			
+			// the mirrored positions of a run are decreasing, so reverse the run to keep them increasing
+			if (seq2.mirrored)
+			{
+				int last = seq2.seqLength-1;
+				int count = run2End-run2Start;
+				for (int lo = 0, hi = count-1; lo <= hi; lo++, hi--)
+				{
+					int loPosition = last-seq2KmerPositions[run2Start+lo];
+					int hiPosition = last-seq2KmerPositions[run2Start+hi];
+					run2Positions[lo] = hiPosition;
+					run2Positions[hi] = loPosition;
+				}
+				
+				seq2KmerPositions = run2Positions;
+				run2Start = 0;
+				run2End = count;
+			}
+			
+			int i1End;
+			if (queryTable!=null)
+			{
+				// look up the run of the first sequence, instead of merging through it
+				int slot = queryTable.find(hash2);
+				if (slot<0)
+					continue;
+				
+				i1 = queryTable.runStart(slot);
+				i1End = queryTable.runEnd(slot);
+			}
+			else
+			{
+				while (i1<seq1Size && seq1KmerHashes[i1]<hash2)
+					i1++;
+				if (i1>=seq1Size)
+					break;
+				if (seq1KmerHashes[i1]>hash2)
+					continue;
+				
+				i1End = i1+1;
+				while (i1End<seq1Size && seq1KmerHashes[i1End]==hash2)
+					i1End++;
+			}
 			
+			recordMatchingRun(matchData, seq1KmerPositions, i1, i1End, seq2KmerPositions, run2Start, run2End, 
+					medianShift, absMaxShift, valid1Lower, valid1Upper, valid2Lower, valid2Upper);
+			
+			i1 = i1End;
+		}
+	}
+	
+	private static void recordMatchingRun(
+			MatchData matchData, 
+			int[] seq1KmerPositions, 
+			int i1,
+			int i1End,
+			int[] seq2KmerPositions,
+			int i2,
+			int i2End,
+			int medianShift,
+			int absMaxShift,
+			int valid1Lower,
+			int valid1Upper,
+			int valid2Lower,
+			int valid2Upper)
+	{
+		// perform merge operation on k-mers with the same hash to get the shift and the kmer count
+		while (i1<i1End && i2<i2End)
+		{
 			// get the values in the array
-			hash1 = seq1KmerHashes[i1][0];
-			pos1 = seq1KmerHashes[i1][1];
-			hash2 = seq2KmerHashes[i2][0];
-			pos2 = seq2KmerHashes[i2][1];
+			int pos1 = seq1KmerPositions[i1];
+			int pos2 = seq2KmerPositions[i2];
 
-			if (hash1 < hash2 || pos1 < valid1Lower || pos1 >= valid1Upper)
+			if (pos1 < valid1Lower || pos1 >= valid1Upper)
 				i1++;
-			else if (hash2 < hash1 || pos2 < valid2Lower || pos2 >= valid2Upper)
+			else if (pos2 < valid2Lower || pos2 >= valid2Upper)
 				i2++;
 			else
 			{
@@ -459,47 +642,26 @@ public final class BottomOverlapSketch
 					//move the index to last point of same hash
 					int i1Last = i1;
 					int i1Try = i1+1;
-					if (i1Try<seq1KmerHashes.length)
+					while (i1Try<i1End && seq1KmerPositions[i1Try] >= valid1Lower && seq1KmerPositions[i1Try] < valid1Upper)
 					{
-						int hash1Try = seq1KmerHashes[i1Try][0];
-						int pos1Try = seq1KmerHashes[i1Try][1];
-						while((hash1Try == hash1 && pos1Try >= valid1Lower && pos1Try < valid1Upper))
-						{
-							i1Last = i1Try;
-
-							i1Try++;
-							if (i1Try>=seq1KmerHashes.length)
-								break;
-							
-							hash1Try = seq1KmerHashes[i1Try][0];
-							pos1Try = seq1KmerHashes[i1Try][1];
-						}
+						i1Last = i1Try;
+						i1Try++;
 					}
 
 					//move the index to last point of same hash
 					int i2Last = i2;
 					int i2Try = i2+1;
-					if (i2Try<seq2KmerHashes.length)
+					while (i2Try<i2End && seq2KmerPositions[i2Try] >= valid2Lower && seq2KmerPositions[i2Try] < valid2Upper)
 					{
-						int hash2Try = seq2KmerHashes[i2Try][0];
-						int pos2Try = seq2KmerHashes[i2Try][1];
-						while((hash2Try == hash2 && pos2Try >= valid2Lower && pos2Try < valid2Upper))
-						{
-							i2Last = i2Try;
-							i2Try++;
-							if (i2Try>=seq2KmerHashes.length)
-								break;
-
-							hash2Try = seq2KmerHashes[i2Try][0];
-							pos2Try = seq2KmerHashes[i2Try][1];
-						}
+						i2Last = i2Try;
+						i2Try++;
 					}
 
 					//store the match and update the counters
 					if (i1!=i1Last || i2!=i2Last)
 					{		
-						int pos1New =  seq1KmerHashes[i1Last][1];
-						int pos2New =  seq2KmerHashes[i2Last][1];
+						int pos1New =  seq1KmerPositions[i1Last];
+						int pos2New =  seq2KmerPositions[i2Last];
 						matchData.recordMatch(pos1New, pos2New, pos2New-pos1New);
 						i1 = i1Last+1;
 						i2 = i2Last+1;
@@ -515,52 +677,89 @@ public final class BottomOverlapSketch
 		}
 	}
 
-	private BottomOverlapSketch(int seqLength, int kmerSize, int[][] orderedHashes)
+	BottomOverlapSketch(int seqLength, int kmerSize, int[] hashes, int[] positions)
 	{
 		this.seqLength = seqLength;
-		this.orderedHashes = orderedHashes;
+		this.hashes = hashes;
+		this.positions = positions;
+		this.packed = null;
 		this.kmerSize = kmerSize;
+		this.mirrored = false;
+	}
+
+	private BottomOverlapSketch(int seqLength, int kmerSize, PackedKmerArray packed)
+	{
+		this.seqLength = seqLength;
+		this.hashes = null;
+		this.positions = null;
+		this.packed = packed;
+		this.kmerSize = kmerSize;
+		this.mirrored = false;
+	}
+	
+	private BottomOverlapSketch(BottomOverlapSketch sketch, boolean mirrored)
+	{
+		this.seqLength = sketch.seqLength;
+		this.hashes = sketch.hashes;
+		this.positions = sketch.positions;
+		this.packed = sketch.packed;
+		this.kmerSize = sketch.kmerSize;
+		this.mirrored = mirrored;
 	}
 
 	public BottomOverlapSketch(String seq, int kmerSize, int sketchSize, boolean doReverseCompliment) throws ZeroNGramsFoundException
+	{
+		this(seq, kmerSize, sketchSize, doReverseCompliment, new SketchWorkspace());
+	}
+
+	public BottomOverlapSketch(String seq, int kmerSize, int sketchSize, boolean doReverseCompliment, SketchWorkspace workspace) throws ZeroNGramsFoundException
 	{
 		this.kmerSize = kmerSize;
 		this.seqLength = seq.length() - kmerSize + 1;
+		this.mirrored = false;
 		
 		if (this.seqLength<=0)
 			throw new ZeroNGramsFoundException("Sequence length must be greater or equal to n-gram size "+kmerSize+".", seq);
 		
-		// compute just direct hash of sequence
-		int[] hashes = HashUtils.computeSequenceHashes(seq, kmerSize, doReverseCompliment);
-
-		int[] perm = new int[hashes.length];
+		// compute just direct hash of sequence, k-mers with ambiguous bases are skipped
+		int[] hashes = workspace.hashes(this.seqLength);
+		int[] positions = workspace.positions(this.seqLength);
+		int numberHashes = HashUtils.computeSequenceHashes(seq, kmerSize, doReverseCompliment, hashes, positions);
+		
+		if (numberHashes<=0)
+			throw new ZeroNGramsFoundException("Found zero valid n-grams in the string.", seq);
 
-		//init the array
-		for (int iter = 0; iter < hashes.length; iter++)
-			perm[iter] = iter;
+		//the positions are increasing, so sorting the packed values orders by hash and then by position
+		long[] values = workspace.orderedValues(numberHashes);
+		for (int iter = 0; iter < numberHashes; iter++)
+			values[iter] = ((long)hashes[iter]<<32) | (long)positions[iter];
 		
 		//sort the array
-		IntArrays.radixSortIndirect(perm, hashes, true);
+		Arrays.sort(values, 0, numberHashes);
 		
 		//sketchSize = (int)Math.round(0.25*(double)this.seqLength);
 
 		//find the largest storage value
-		int k = Math.min(sketchSize, hashes.length);
+		int k = Math.min(sketchSize, numberHashes);
 		
 		//allocate the memory
-		this.orderedHashes = new int[k][2];
+		this.hashes = new int[k];
+		this.positions = new int[k];
+		this.packed = null;
 
-		for (int iter = 0; iter < this.orderedHashes.length; iter++)
+		for (int iter = 0; iter < k; iter++)
 		{
-			int index = perm[iter];
-			this.orderedHashes[iter][0] = hashes[index];
-			this.orderedHashes[iter][1] = index;
+			this.hashes[iter] = (int)(values[iter]>>>32);
+			this.positions[iter] = (int)values[iter];
 		}
 	}
 
 	public byte[] getAsByteArray()
 	{
-		ByteArrayOutputStream bos = new ByteArrayOutputStream(size() * 2);
+		if (this.mirrored)
+			throw new SketchRuntimeException("A reverse strand view can not be stored.");
+		
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(12 + size() * 8);
 		DataOutputStream dos = new DataOutputStream(bos);
 
 		try
@@ -569,10 +768,23 @@ public final class BottomOverlapSketch
 			dos.writeInt(this.kmerSize);
 			dos.writeInt(size());
 			
-			for (int iter = 0; iter < this.orderedHashes.length; iter++)
+			if (this.packed!=null)
 			{
-				dos.writeInt(this.orderedHashes[iter][0]);
-				dos.writeInt(this.orderedHashes[iter][1]);
+				PackedKmerArray.Cursor cursor = new PackedKmerArray.Cursor();
+				cursor.reset(this.packed);
+				while (cursor.next())
+				{
+					dos.writeInt(cursor.hash);
+					dos.writeInt(cursor.position);
+				}
+			}
+			else
+			{
+				for (int iter = 0; iter < this.hashes.length; iter++)
+				{
+					dos.writeInt(this.hashes[iter]);
+					dos.writeInt(this.positions[iter]);
+				}
 			}
 
 			dos.flush();
@@ -584,27 +796,68 @@ public final class BottomOverlapSketch
 		}
 	}
 	
+	/**
+	 * Decodes the k-mers of a packed sketch into the arrays, which must fit size() values.
+	 */
+	void decode(int[] hashes, int[] positions, PackedKmerArray.Cursor cursor)
+	{
+		if (this.packed!=null)
+			this.packed.decode(hashes, positions, cursor);
+		else
+		{
+			System.arraycopy(this.hashes, 0, hashes, 0, this.hashes.length);
+			System.arraycopy(this.positions, 0, positions, 0, this.positions.length);
+		}
+	}
+	
 	public int getHash(int index)
 	{
-		return this.orderedHashes[index][0];
+		return this.packed!=null ? this.packed.getHash(index) : this.hashes[index];
+	}
+	
+	int[] getHashes()
+	{
+		return this.hashes;
 	}
 	
 	public OverlapInfo getOverlapInfo(BottomOverlapSketch toSequence, double maxShiftPercent)
+	{
+		return getOverlapInfo(toSequence, maxShiftPercent, new OverlapWorkspace());
+	}
+	
+	public OverlapInfo getOverlapInfo(BottomOverlapSketch toSequence, double maxShiftPercent, OverlapWorkspace workspace)
 	{
 		if (this.kmerSize!=toSequence.kmerSize)
 			throw new SketchRuntimeException("Sketch k-mer size does not match between the two sequences.");
+		if (this.mirrored)
+			throw new SketchRuntimeException("A reverse strand view can only be the sketch compared to.");
 		
-		//allocate the memory for the search
-		MatchData matchData = new MatchData(this, toSequence, maxShiftPercent);
+		//reuse the memory for the search
+		MatchData matchData = workspace.matchData();
+		matchData.init(this, toSequence, maxShiftPercent);
+
+		//a packed query is decoded once into the workspace, the other sketch is decoded during the merge
+		int[] hashes = this.hashes;
+		int[] positions = this.positions;
+		if (this.packed!=null)
+		{
+			workspace.decodeQuery(this);
+			hashes = workspace.queryHashes();
+			positions = workspace.queryPositions();
+		}
+		int size = size();
 
+		//the runs of this sketch are looked up if it was prepared as the query
+		OverlapWorkspace.QueryTable queryTable = workspace.getQueryTable(this);
+		
 		//get the initial matches
-		recordMatchingKmers(matchData, this.orderedHashes, toSequence.orderedHashes, 0);
+		recordMatchingKmers(matchData, hashes, positions, size, toSequence, workspace, queryTable);
 		//System.out.println(matchData.matchesToString());
 		if (matchData.isEmpty())
 			return OverlapInfo.EMPTY;
 
 		//get matches again, but now in a better region
-		recordMatchingKmers(matchData, this.orderedHashes, toSequence.orderedHashes, 1);
+		recordMatchingKmers(matchData, hashes, positions, size, toSequence, workspace, queryTable);
 
 		if (matchData.isEmpty())
 			return OverlapInfo.EMPTY;
@@ -621,7 +874,7 @@ public final class BottomOverlapSketch
 			return OverlapInfo.EMPTY;
 		
 		//compute the jaccard score using bottom-k sketching
-		double score = computeKBottomSketchJaccard(this.orderedHashes, toSequence.orderedHashes, matchData.getMedianShift(), matchData.getAbsMaxShift(), edgeData.a1, edgeData.a2, edgeData.b1, edgeData.b2);
+		double score = computeKBottomSketchJaccard(hashes, positions, size, toSequence, edgeData.a1, edgeData.a2, edgeData.b1, edgeData.b2, workspace);
 		score = jaccardToIdentity(score, this.kmerSize);
 		
 		double rawScore = (double)edgeData.count;
@@ -633,9 +886,43 @@ public final class BottomOverlapSketch
 	{
 		return this.seqLength;
 	}
+	
+	public boolean isPacked()
+	{
+		return this.packed!=null;
+	}
+	
+	/**
+	 * Returns the sketch with its k-mers bit-packed, which takes about half the memory, and is compared by decoding the
+	 * k-mers on the fly.
+	 */
+	public BottomOverlapSketch pack()
+	{
+		if (this.packed!=null)
+			return this;
+		if (this.mirrored)
+			throw new SketchRuntimeException("A reverse strand view can not be packed.");
+		
+		return new BottomOverlapSketch(this.seqLength, this.kmerSize, new PackedKmerArray(this.hashes, this.positions));
+	}
+	
+	/**
+	 * Returns the sketch of the reverse compliment strand, without copying the k-mers. Only valid for sketches of
+	 * canonical k-mers, whose reverse compliment has the same hashes at the mirrored positions. The view can only be
+	 * the sketch compared to in getOverlapInfo().
+	 */
+	public BottomOverlapSketch reverseStrandView()
+	{
+		return new BottomOverlapSketch(this, !this.mirrored);
+	}
+	
+	public long sizeInBytes()
+	{
+		return this.packed!=null ? this.packed.sizeInBytes() : 8L*this.hashes.length;
+	}
 
 	public int size()
 	{
-		return this.orderedHashes.length;
+		return this.packed!=null ? this.packed.size() : this.hashes.length;
 	}
 }
@@ -42,12 +42,14 @@ import java.util.concurrent.atomic.AtomicReference;
 import com.google.common.hash.BloomFilter;
 
 import edu.umd.marbl.mhap.impl.MhapRuntimeException;
+import it.unimi.dsi.fastutil.HashCommon;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
 
 public final class FrequencyCounts
 {
 	private final double filterCutoff;
+	private final long fingerprint;
 	private final Map<Long,Double> fractionCounts;
 	private final Set<Integer> kmerSizes;
 	private final double maxIdfValue;
@@ -155,9 +157,15 @@ public final class FrequencyCounts
 		final ThreadPoolExecutor executor = new ThreadPoolExecutor(numThreads, numThreads, 100L, TimeUnit.MILLISECONDS,
 				new LinkedBlockingQueue<Runnable>(10000), new ThreadPoolExecutor.CallerRunsPolicy());
 		
+		//the fingerprint covers the lines of the file in order, and the settings that change the sketches
+		long fingerprint = HashCommon.murmurHash3(Double.doubleToLongBits(filterCutoff)) ^ HashCommon.murmurHash3(Double.doubleToLongBits(offset)+1L)
+				^ HashCommon.murmurHash3(Double.doubleToLongBits(range)+2L) ^ HashCommon.murmurHash3(removeUnique*4L+(noTf ? 1L : 0L)+(doReverseCompliment ? 2L : 0L)+16L);
+		
 		//line = bf.readLine(); // GB: replaced with the call above
 		while (line != null)
 		{
+			fingerprint = HashCommon.murmurHash3(fingerprint*31L+line.hashCode());
+			
 			String currLine = line;
 			
 			executor.submit(() -> 
@@ -175,7 +183,10 @@ public final class FrequencyCounts
 						this.kmerSizes.add(str[0].length());
 					}					
 					
-					long[] hash = HashUtils.computeSequenceHashesLong(str[0], str[0].length(), 0, doReverseCompliment);
+					//k-mers with ambiguous bases are never part of a sketch
+					long[] hash = new long[1];
+					if (HashUtils.computeSequenceHashesLong(str[0], str[0].length(), doReverseCompliment, hash, null)<1)
+						return;
 					
 					if (str.length >= 2)
 					{
@@ -229,6 +240,7 @@ public final class FrequencyCounts
 		this.validMers = validMers;
 		this.fractionCounts = validMap;
 		this.filterCutoff = filterCutoff;
+		this.fingerprint = fingerprint==0L ? 1L : fingerprint;
 		this.offset = offset;
 		this.maxValue = maxValue.get();
 		this.minValue = this.filterCutoff;
@@ -246,6 +258,15 @@ public final class FrequencyCounts
 		return val;
 	}
 	
+	/**
+	 * @return a non-zero hash of the filter file and the filter settings, stored in the dat files to check that they
+	 *         were sketched with the same filter
+	 */
+	public long getFingerprint()
+	{
+		return this.fingerprint;
+	}
+
 	public double getFilterCutoff()
 	{
 		return this.filterCutoff;
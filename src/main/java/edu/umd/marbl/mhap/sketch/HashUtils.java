@@ -29,6 +29,7 @@
 package edu.umd.marbl.mhap.sketch;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import com.google.common.hash.HashCode;
 import com.google.common.hash.HashFunction;
@@ -41,6 +42,24 @@ import edu.umd.marbl.mhap.utils.Utils;
 
 public class HashUtils
 {
+	// largest k-mer that still fits into a single 2-bit encoded long word
+	public static final int MAX_ROLLING_KMER_SIZE = 32;
+	
+	// use the murmur3 string hashing of MHAP 2.1 and earlier for the k-mers, instead of the rolling hash
+	public static boolean USE_MURMUR_KMER_HASH = false;
+
+	// 2-bit codes of the nucleotides, -1 for everything that is not ACGT
+	private static final byte[] NUCLEOTIDE_CODES = new byte[128];
+	
+	static
+	{
+		Arrays.fill(NUCLEOTIDE_CODES, (byte)-1);
+		NUCLEOTIDE_CODES['A'] = NUCLEOTIDE_CODES['a'] = 0;
+		NUCLEOTIDE_CODES['C'] = NUCLEOTIDE_CODES['c'] = 1;
+		NUCLEOTIDE_CODES['G'] = NUCLEOTIDE_CODES['g'] = 2;
+		NUCLEOTIDE_CODES['T'] = NUCLEOTIDE_CODES['t'] = 3;
+	}
+	
 	public static long[] computeHashes(String item, int numWords, int seed)
 	{
 		long[] hashes = new long[numWords];
@@ -210,6 +229,22 @@ public class HashUtils
 		return hashes;
 	}
 
+	public final static int computeSequenceHashes(final String seq, final int nGramSize, final boolean doReverseCompliment, final int[] hashes, final int[] positions)
+	{
+		if (USE_MURMUR_KMER_HASH || nGramSize>MAX_ROLLING_KMER_SIZE)
+		{
+			int[] murmurHashes = computeSequenceHashes(seq, nGramSize, doReverseCompliment);
+			System.arraycopy(murmurHashes, 0, hashes, 0, murmurHashes.length);
+			if (positions!=null)
+				for (int iter = 0; iter < murmurHashes.length; iter++)
+					positions[iter] = iter;
+			
+			return murmurHashes.length;
+		}
+		
+		return rollingSequenceHashes(seq, nGramSize, doReverseCompliment, hashes, null, positions);
+	}
+
 	public final static int[] computeSequenceHashes(final String seq, final int nGramSize, boolean doReverseCompliment)
 	{
 		HashFunction hf = Hashing.murmur3_32(0);
@@ -234,6 +269,22 @@ public class HashUtils
 		return hashes;
 	}
 
+	public final static int computeSequenceHashesLong(final String seq, final int nGramSize, final boolean doReverseCompliment, final long[] hashes, final int[] positions)
+	{
+		if (USE_MURMUR_KMER_HASH || nGramSize>MAX_ROLLING_KMER_SIZE)
+		{
+			long[] murmurHashes = computeSequenceHashesLong(seq, nGramSize, 0, doReverseCompliment);
+			System.arraycopy(murmurHashes, 0, hashes, 0, murmurHashes.length);
+			if (positions!=null)
+				for (int iter = 0; iter < murmurHashes.length; iter++)
+					positions[iter] = iter;
+			
+			return murmurHashes.length;
+		}
+
+		return rollingSequenceHashes(seq, nGramSize, doReverseCompliment, null, hashes, positions);
+	}
+
 	public final static long[] computeSequenceHashesLong(final String seq, final int nGramSize, final int seed, final boolean doReverseCompliment)
 	{
 		HashFunction hf = Hashing.murmur3_128(seed);
@@ -257,6 +308,80 @@ public class HashUtils
 		return hashes;
 	}
 	
+	/**
+	 * Hashes the 2-bit encoded k-mers of the sequence, restarting after every ambiguous base. The hashes are computed
+	 * in 64 bits, and stored narrowed into intHashes, or into longHashes if intHashes is null.
+	 * 
+	 * @return the number of k-mers hashed
+	 */
+	private static int rollingSequenceHashes(final String seq, final int nGramSize, final boolean doReverseCompliment, final int[] intHashes, 
+			final long[] longHashes, final int[] positions)
+	{
+		final long mask = kmerMask(nGramSize);
+		final int shift = 2*(nGramSize-1);
+		final int length = seq.length();
+
+		long fwd = 0L;
+		long rev = 0L;
+		int validBases = 0;
+		int count = 0;
+		for (int iter = 0; iter < length; iter++)
+		{
+			final int code = nucleotideCode(seq.charAt(iter));
+			
+			// restart the k-mer after an ambiguous base
+			if (code<0)
+			{
+				validBases = 0;
+				continue;
+			}
+			
+			fwd = ((fwd<<2) | code) & mask;
+			rev = (rev>>>2) | ((long)(3-code)<<shift);
+			validBases++;
+			
+			if (validBases>=nGramSize)
+			{
+				long kmer = (doReverseCompliment && Long.compareUnsigned(rev, fwd)<0) ? rev : fwd;
+				if (intHashes!=null)
+					intHashes[count] = (int)mix64(kmer);
+				else
+					longHashes[count] = mix64(kmer);
+				if (positions!=null)
+					positions[count] = iter-nGramSize+1;
+				
+				count++;
+			}
+		}
+		
+		return count;
+	}
+
+	public final static long kmerMask(int kmerSize)
+	{
+		if (kmerSize>=MAX_ROLLING_KMER_SIZE)
+			return -1L;
+		
+		return (1L<<(2*kmerSize))-1L;
+	}
+
+	// invertible 64-bit finalizer of splitmix64, the offset keeps the all-A k-mer away from zero
+	public final static long mix64(long x)
+	{
+		x += 0x9E3779B97F4A7C15L;
+		x = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+		x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+		return x ^ (x >>> 31);
+	}
+	
+	public final static int nucleotideCode(char c)
+	{
+		if (c>=NUCLEOTIDE_CODES.length)
+			return -1;
+		
+		return NUCLEOTIDE_CODES[c];
+	}
+
 	public static double[] randomGuassianVector(int n, int seed)
 	{
 		//now generate the guassian
@@ -0,0 +1,219 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.sketch;
+
+import it.unimi.dsi.fastutil.HashCommon;
+
+import java.util.Arrays;
+
+/**
+ * Reusable counts of the k-mer hashes of a single sequence. The k-mers are kept in insertion order in primitive
+ * arrays, indexed by an open-addressing table, so clearing and refilling it for the next sequence does not allocate
+ * once the arrays have grown to the largest sequence seen.
+ */
+public final class KmerCounts
+{
+	private int[] counts;
+	private long[] hashBuffer;
+	
+	//number of keys that were added through the table, instead of appended
+	private int indexed;
+	private long[] keys;
+	private int mask;
+	private int size;
+	private int[] slots;
+	
+	//index+1 of the key in each slot, 0 for empty slots
+	private int[] table;
+	
+	public KmerCounts()
+	{
+		this(1024);
+	}
+	
+	public KmerCounts(int expectedSize)
+	{
+		this.size = 0;
+		this.indexed = 0;
+		this.hashBuffer = new long[0];
+		this.keys = new long[expectedSize];
+		this.counts = new int[expectedSize];
+		this.slots = new int[expectedSize];
+		
+		int tableSize = HashCommon.arraySize(expectedSize, .5f);
+		this.table = new int[tableSize];
+		this.mask = tableSize-1;
+	}
+	
+	public void add(long key)
+	{
+		int slot = (int)HashCommon.mix(key) & this.mask;
+		int index;
+		while ((index = this.table[slot])!=0)
+		{
+			if (this.keys[index-1]==key)
+			{
+				this.counts[index-1]++;
+				return;
+			}
+			
+			slot = (slot+1) & this.mask;
+		}
+		
+		if (this.size>=this.keys.length)
+		{
+			grow();
+			add(key);
+			return;
+		}
+		
+		this.keys[this.size] = key;
+		this.counts[this.size] = 1;
+		this.slots[this.size] = slot;
+		this.size++;
+		this.indexed++;
+		this.table[slot] = this.size;
+	}
+	
+	/**
+	 * Appends the key without counting it, the duplicates are removed by a later call to sortUnique(). Should not be
+	 * mixed with add() before the next clear().
+	 */
+	public void append(long key)
+	{
+		if (this.size>=this.keys.length)
+			grow();
+		
+		this.keys[this.size] = key;
+		this.counts[this.size] = 1;
+		this.size++;
+	}
+	
+	public void clear()
+	{
+		//only reset the used slots, so clearing is proportional to the sequence and not the largest table
+		for (int iter = 0; iter < this.indexed; iter++)
+			this.table[this.slots[iter]] = 0;
+		
+		this.size = 0;
+		this.indexed = 0;
+	}
+	
+	/**
+	 * Grows the arrays up front when the number of distinct k-mers is known, instead of doubling them while adding.
+	 */
+	public void ensureCapacity(int capacity)
+	{
+		if (this.keys.length<capacity)
+			resize(Math.max(capacity, this.keys.length+this.keys.length/2));
+	}
+	
+	public int count(int index)
+	{
+		return this.counts[index];
+	}
+	
+	/**
+	 * Scratch array of at least the given size, for hashing a sequence before adding its k-mers.
+	 */
+	long[] hashBuffer(int minSize)
+	{
+		if (this.hashBuffer.length<minSize)
+			this.hashBuffer = new long[Math.max(minSize, this.hashBuffer.length*2)];
+		
+		return this.hashBuffer;
+	}
+	
+	private void grow()
+	{
+		resize(Math.max(16, this.keys.length*2));
+	}
+	
+	public boolean isEmpty()
+	{
+		return this.size==0;
+	}
+	
+	public long key(int index)
+	{
+		return this.keys[index];
+	}
+	
+	private void resize(int capacity)
+	{
+		int tableSize = HashCommon.arraySize(capacity, .5f);
+
+		long[] newKeys = new long[capacity];
+		int[] newCounts = new int[capacity];
+		System.arraycopy(this.keys, 0, newKeys, 0, this.size);
+		System.arraycopy(this.counts, 0, newCounts, 0, this.size);
+		this.keys = newKeys;
+		this.counts = newCounts;
+		this.slots = new int[capacity];
+		this.table = new int[tableSize];
+		this.mask = tableSize-1;
+		
+		//rehash the counted keys
+		for (int iter = 0; iter < this.indexed; iter++)
+		{
+			int slot = (int)HashCommon.mix(this.keys[iter]) & this.mask;
+			while (this.table[slot]!=0)
+				slot = (slot+1) & this.mask;
+			
+			this.table[slot] = iter+1;
+			this.slots[iter] = slot;
+		}
+	}
+	
+	public int size()
+	{
+		return this.size;
+	}
+	
+	/**
+	 * Sorts the appended keys and removes the duplicates, each remaining key has a count of 1.
+	 */
+	public void sortUnique()
+	{
+		if (this.size<=1)
+			return;
+		
+		//in place sort, the radix sort allocates its own buffers
+		Arrays.sort(this.keys, 0, this.size);
+		
+		int unique = 1;
+		for (int iter = 1; iter < this.size; iter++)
+		{
+			if (this.keys[iter]!=this.keys[unique-1])
+				this.keys[unique++] = this.keys[iter];
+		}
+		
+		this.size = unique;
+	}
+}
@@ -8,8 +8,7 @@
  * whatsoever, arising out of or in connection with the use of this
  * software.
  * 
- * Copyright (c) 2014 by Konstantin Berlin and Sergey Koren
- * University Of Maryland
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
  * 
  * Licensed to the Apache Software Foundation (ASF) under one or more
  * contributor license agreements.  See the NOTICE file distributed with
@@ -27,19 +26,29 @@
  * limitations under the License.
  * 
  */
-package edu.umd.marbl.mhap.utils;
+package edu.umd.marbl.mhap.sketch;
 
-public final class ReadBuffer
+public enum MinHashMode
 {
-	private byte[] buff = new byte[2];
+	// numHashes independent xorshift hash functions per k-mer (MHAP 2.1 and earlier)
+	CLASSIC,
 	
-	public final byte[] getBuffer(int size)
+	// every k-mer is hashed once into one of numHashes bins, empty bins are filled by optimal densification
+	ONE_PERMUTATION,
+	
+	// improved consistent weighted sampling (0-bit ICWS) of the real valued tf-idf weight, constant time per hash function
+	CONSISTENT_WEIGHTED;
+	
+	public static MinHashMode fromCode(int code)
 	{
-		if (this.buff.length<size)
-			this.buff = new byte[size];
-
-		return this.buff;
+		if (code<0 || code>=values().length)
+			throw new SketchRuntimeException("Unknown MinHash mode "+code+".");
+		
+		return values()[code];
 	}
 	
-	
-}
\ No newline at end of file
+	public int getCode()
+	{
+		return ordinal();
+	}
+}
@@ -29,16 +29,11 @@
  */
 package edu.umd.marbl.mhap.sketch;
 
-import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
-
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.Map.Entry;
-
-import edu.umd.marbl.mhap.utils.HitCounter;
 
 public final class MinHashSketch implements Sketch<MinHashSketch>
 {
@@ -49,7 +44,7 @@ public final class MinHashSketch implements Sketch<MinHashSketch>
 	private static final long serialVersionUID = 8846482698636860862L;
 	
 	private final static int[] computeNgramMinHashesWeighted(String seq, final int nGramSize, final int numHashes,
-			FrequencyCounts kmerFilter, boolean doReverseCompliment, double repeatWeight) throws ZeroNGramsFoundException
+			FrequencyCounts kmerFilter, boolean doReverseCompliment, double repeatWeight, MinHashMode mode, SketchWorkspace workspace) throws ZeroNGramsFoundException
 	{
 		final int numberNGrams = seq.length() - nGramSize + 1;
 	
@@ -59,43 +54,66 @@ public final class MinHashSketch implements Sketch<MinHashSketch>
 		//if (repeatWeight>=1.0)
 		//	throw new SketchRuntimeException("repeatWeight cannot be >=1.");
 
-		// get the kmer hashes
-		final long[] kmerHashes = HashUtils.computeSequenceHashesLong(seq, nGramSize, 0, doReverseCompliment);
+		// get the kmer hashes, k-mers with ambiguous bases are skipped
+		final KmerCounts counts = workspace.kmerCounts();
+		counts.clear();
+		counts.ensureCapacity(numberNGrams);
+		final long[] kmerHashes = counts.hashBuffer(numberNGrams);
+		final int numberHashes = HashUtils.computeSequenceHashesLong(seq, nGramSize, doReverseCompliment, kmerHashes, null);
+		
+		//the original version only needs the distinct k-mers, not their counts
+		final boolean countKmers = repeatWeight>=0.0;
 		
 		//now compute the counts of occurance
-		Long2ObjectLinkedOpenHashMap<HitCounter> hitMap = new Long2ObjectLinkedOpenHashMap<HitCounter>(kmerHashes.length);
-		for (long kmer : kmerHashes)
+		for (int iter = 0; iter < numberHashes; iter++)
 		{
+			long kmer = kmerHashes[iter];
+			
 			//do not add unique kmers to the sketch
 			if (kmerFilter!=null && !kmerFilter.keepKmer(kmer))
 				continue;
 			
-			HitCounter counter = hitMap.get(kmer);
-			if (counter==null)
-			{
-				counter = new HitCounter(1);
-				hitMap.put(kmer, counter);
-			}
+			if (countKmers)
+				counts.add(kmer);
 			else
-				counter.addHit();
+				counts.append(kmer);
 		}
 		
+		if (!countKmers)
+			counts.sortUnique();
+		
+		return computeNgramMinHashesWeighted(counts, numHashes, kmerFilter, repeatWeight, mode, workspace, seq);
+	}
+
+	final static int[] computeNgramMinHashesWeighted(KmerCounts counts, final int numHashes,
+			FrequencyCounts kmerFilter, double repeatWeight, MinHashMode mode, SketchWorkspace workspace, String seq) throws ZeroNGramsFoundException
+	{
 		//make sure don't create a zero value
-		if (hitMap.isEmpty())
+		if (counts.isEmpty())
 			throw new ZeroNGramsFoundException("Found zero unfiltered n-grams in the string.", seq);
 	
-		//allocate the space
+		//allocate the space, the min values are kept in the workspace
 		int[] hashes = new int[Math.max(1,numHashes)];		
-		long[] best = new long[numHashes];
-		Arrays.fill(best, Long.MAX_VALUE);
+		long[] best = workspace.bestValues(numHashes);
+		Arrays.fill(best, 0, numHashes, Long.MAX_VALUE);
+		
+		//the real valued samples of the consistent weighted sampling
+		double[] bestSample = null;
+		if (mode==MinHashMode.CONSISTENT_WEIGHTED)
+		{
+			bestSample = workspace.bestSamples(numHashes);
+			Arrays.fill(bestSample, 0, numHashes, Double.POSITIVE_INFINITY);
+		}
 
 		//go through all the k-mers and find the min values
 		int numberValid = 0;
 		
-		for (Entry<Long, HitCounter> kmer : hitMap.entrySet())
+		final int numberKmers = counts.size();
+		for (int index = 0; index < numberKmers; index++)
 		{
-			long key = kmer.getKey();
-			int weight = kmer.getValue().count;
+			long key = counts.key(index);
+			int weight = counts.count(index);
+			double realWeight = weight;
 			
 			//original version of MHAP
 			if (repeatWeight<0.0)
@@ -104,6 +122,8 @@ public final class MinHashSketch implements Sketch<MinHashSketch>
 			
 				if (kmerFilter!=null && kmerFilter.isPopular(key))
 					weight = 0;
+				
+				realWeight = weight;
 			}	
 			else
 			if (kmerFilter!=null)
@@ -117,7 +137,8 @@ public final class MinHashSketch implements Sketch<MinHashSketch>
 					double idf = kmerFilter.scaledIdf(key);
 					
 					//compute td-idf
-					weight = (int)Math.round(tf*idf);
+					realWeight = tf*idf;
+					weight = (int)Math.round(realWeight);
 					if (weight<1)
 						weight = 1;
 				}
@@ -132,6 +153,77 @@ public final class MinHashSketch implements Sketch<MinHashSketch>
 			
 			//set the initial shift value
 			long x = key;
+			
+			//sample the real valued weight once per hash function, instead of repeating the hash function
+			if (mode==MinHashMode.CONSISTENT_WEIGHTED)
+			{
+				final double logWeight = Math.log(realWeight);
+				final double invWeight = 1.0/realWeight;
+				for (int word = 0; word < numHashes; word++)
+				{
+					// XORShift Random Number Generators
+					x ^= (x << 21);
+					x ^= (x >>> 35);
+					x ^= (x << 4);
+					final long x1 = x;
+					x ^= (x << 21);
+					x ^= (x >>> 35);
+					x ^= (x << 4);
+					final long x2 = x;
+					
+					// r~Gamma(2,1) is -ln(u1*u2), c~Gamma(2,1) is -ln(u3*u4)
+					final double expMinusR = uniformProduct(x1);
+					final double u34 = uniformProduct(x2);
+					
+					//the sample is at least c*exp(-r)/weight and -ln(z)>=1-z, so most samples are rejected without a log
+					final double currentBest = bestSample[word];
+					if ((1.0-u34)*expMinusR*invWeight >= currentBest)
+						continue;
+					
+					final double r = -Math.log(expMinusR);
+					final double c = -Math.log(u34);
+					final double beta = uniform53(HashUtils.mix64(x1+x2));
+					final double t = Math.floor(logWeight/r + beta);
+					
+					//a = c/(y*exp(r)), y = exp(r*(t-beta))
+					final double sample = c*expMinusR/Math.exp(r*(t-beta));
+					if (sample < currentBest)
+					{
+						bestSample[word] = sample;
+						if (word%2==0)
+							hashes[word] = (int)key;
+						else
+							hashes[word] = (int)(key>>>32);
+					}
+				}
+				
+				continue;
+			}
+			
+			//each copy of the k-mer goes into a single bin
+			if (mode==MinHashMode.ONE_PERMUTATION)
+			{
+				for (int count = 0; count<weight; count++)
+				{				
+					// XORShift Random Number Generators
+					x ^= (x << 21);
+					x ^= (x >>> 35);
+					x ^= (x << 4);
+					
+					int bin = (int)(((x>>>32)*(long)numHashes)>>>32);
+					if (x < best[bin])
+					{
+						best[bin] = x;
+						if (bin%2==0)
+							hashes[bin] = (int)key;
+						else
+							hashes[bin] = (int)(key>>>32);
+					}
+				}
+				
+				continue;
+			}
+			
 			for (int word = 0; word < numHashes; word++)
 			{
 				for (int count = 0; count<weight; count++)
@@ -155,6 +247,9 @@ public final class MinHashSketch implements Sketch<MinHashSketch>
 		
 		if (numberValid<=0)
 			throw new ZeroNGramsFoundException("Found zero unfiltered n-grams in the string.", seq);
+		
+		if (mode==MinHashMode.ONE_PERMUTATION)
+			densify(hashes, best, numHashes);
 
 		//now combine into super shingles
 		/*
@@ -178,6 +273,54 @@ public final class MinHashSketch implements Sketch<MinHashSketch>
 		return hashes;
 	}
 
+	// optimal densification, each empty bin copies the first non-empty bin in its own random probe sequence
+	private final static void densify(int[] hashes, long[] best, final int numHashes)
+	{
+		for (int bin = 0; bin < numHashes; bin++)
+		{
+			if (best[bin]!=Long.MAX_VALUE)
+				continue;
+			
+			//only probe bins that were filled by a k-mer, never ones filled here
+			for (long attempt = 1L; ; attempt++)
+			{
+				long x = HashUtils.mix64(((long)bin<<32) | attempt);
+				int source = (int)(((x>>>32)*(long)numHashes)>>>32);
+				if (best[source]!=Long.MAX_VALUE)
+				{
+					hashes[bin] = hashes[source];
+					break;
+				}
+			}
+		}
+	}
+
+	private final static double uniform53(long x)
+	{
+		return ((double)(x>>>11)+0.5)*0x1.0p-53;
+	}
+
+	private final static double uniformProduct(long x)
+	{
+		//product of the two 32-bit halves as uniforms, computed with a single integer multiply
+		return (double)((((x>>>32)|1L)*((x & 0xFFFFFFFFL)|1L))>>>1 | 1L)*0x1.0p-63;
+	}
+	
+	/**
+	 * Decodes the sketch written by getAsByteArray() at the position of the buffer, and moves the position past it.
+	 */
+	public static MinHashSketch fromByteBuffer(ByteBuffer buffer)
+	{
+		int hashNum = buffer.getInt();
+		
+		//bulk copy of the array
+		int[] minHashes = new int[hashNum];
+		buffer.asIntBuffer().get(minHashes);
+		buffer.position(buffer.position()+4*hashNum);
+		
+		return new MinHashSketch(minHashes);
+	}
+	
 	public static MinHashSketch fromByteStream(DataInputStream input) throws IOException
 	{
 		try
@@ -200,19 +343,29 @@ public final class MinHashSketch implements Sketch<MinHashSketch>
 		}
 	}
 	
-	private MinHashSketch(int[] minHashes)
+	MinHashSketch(int[] minHashes)
 	{
 		this.minHashes = minHashes;
 	}
 	
 	public MinHashSketch(String str, int nGramSize, int numHashes, boolean doReverseCompliment) throws ZeroNGramsFoundException
 	{
-		this.minHashes = MinHashSketch.computeNgramMinHashesWeighted(str, nGramSize, numHashes, null, doReverseCompliment, -1.0);
+		this.minHashes = MinHashSketch.computeNgramMinHashesWeighted(str, nGramSize, numHashes, null, doReverseCompliment, -1.0, MinHashMode.CLASSIC, new SketchWorkspace());
 	}
 	
 	public MinHashSketch(String seq, int nGramSize, int numHashes, FrequencyCounts freqFilter, boolean doReverseCompliment, double repeatWeight) throws ZeroNGramsFoundException
 	{
-		this.minHashes = MinHashSketch.computeNgramMinHashesWeighted(seq, nGramSize, numHashes, freqFilter, doReverseCompliment, repeatWeight);
+		this(seq, nGramSize, numHashes, freqFilter, doReverseCompliment, repeatWeight, MinHashMode.CLASSIC);
+	}
+
+	public MinHashSketch(String seq, int nGramSize, int numHashes, FrequencyCounts freqFilter, boolean doReverseCompliment, double repeatWeight, MinHashMode mode) throws ZeroNGramsFoundException
+	{
+		this(seq, nGramSize, numHashes, freqFilter, doReverseCompliment, repeatWeight, mode, new SketchWorkspace());
+	}
+
+	public MinHashSketch(String seq, int nGramSize, int numHashes, FrequencyCounts freqFilter, boolean doReverseCompliment, double repeatWeight, MinHashMode mode, SketchWorkspace workspace) throws ZeroNGramsFoundException
+	{
+		this.minHashes = MinHashSketch.computeNgramMinHashesWeighted(seq, nGramSize, numHashes, freqFilter, doReverseCompliment, repeatWeight, mode, workspace);
 	}
 
 	public byte[] getAsByteArray()
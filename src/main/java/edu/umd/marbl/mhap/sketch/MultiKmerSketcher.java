@@ -0,0 +1,454 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.sketch;
+
+import java.util.Arrays;
+
+import edu.umd.marbl.mhap.impl.Sequence;
+import edu.umd.marbl.mhap.utils.Pair;
+import edu.umd.marbl.mhap.utils.Utils;
+
+/**
+ * Computes the MinHash and the bottom-k overlap sketches of a sequence in a single pass. The 2-bit rolling words of
+ * both k-mer sizes are updated together, and every k-mer is fed directly into the min-hash counts and the bottom-k
+ * selection, without storing the hashes of all the k-mers first. The results are identical to constructing the
+ * MinHashSketch and BottomOverlapSketch separately. The reverse compliment strand is sketched by reading the packed
+ * bases of the sequence backwards, without creating its string.
+ */
+public final class MultiKmerSketcher
+{
+	private final boolean canonical;
+	private final FrequencyCounts kmerFilter;
+	private final int kmerSize;
+	private final MinHashMode mode;
+	private final int numHashes;
+	private final int orderedKmerSize;
+	private final int orderedSketchSize;
+	private final double repeatWeight;
+	
+	public MultiKmerSketcher(int kmerSize, int numHashes, int orderedKmerSize, int orderedSketchSize, FrequencyCounts kmerFilter, double repeatWeight)
+	{
+		this(kmerSize, numHashes, orderedKmerSize, orderedSketchSize, kmerFilter, repeatWeight, MinHashMode.CLASSIC);
+	}
+
+	public MultiKmerSketcher(int kmerSize, int numHashes, int orderedKmerSize, int orderedSketchSize, FrequencyCounts kmerFilter, double repeatWeight, MinHashMode mode)
+	{
+		this(kmerSize, numHashes, orderedKmerSize, orderedSketchSize, kmerFilter, repeatWeight, mode, false);
+	}
+
+	/**
+	 * @param canonical
+	 *            if true, every k-mer is hashed as the smaller of itself and its reverse compliment, so both strands
+	 *            of a sequence have the same min-hashes, and the same ordered hashes at mirrored positions
+	 */
+	public MultiKmerSketcher(int kmerSize, int numHashes, int orderedKmerSize, int orderedSketchSize, FrequencyCounts kmerFilter, double repeatWeight, MinHashMode mode,
+			boolean canonical)
+	{
+		this.canonical = canonical;
+		this.mode = mode;
+		this.kmerSize = kmerSize;
+		this.numHashes = numHashes;
+		this.orderedKmerSize = orderedKmerSize;
+		this.orderedSketchSize = orderedSketchSize;
+		this.kmerFilter = kmerFilter;
+		this.repeatWeight = repeatWeight;
+	}
+	
+	// same choice as HashUtils.computeSequenceHashes()
+	private static long canonicalKmer(long kmer, long reverseKmer)
+	{
+		return Long.compareUnsigned(reverseKmer, kmer)<0 ? reverseKmer : kmer;
+	}
+	
+	// packs the hash into the upper bits, so the signed long order matches the (hash, position) order of the sketch
+	private static long packHashPosition(int hash, int position)
+	{
+		return ((long)hash<<32) | (long)position;
+	}
+	
+	/**
+	 * Keeps the smallest values in the max-heap.
+	 * 
+	 * @return the new size of the heap
+	 */
+	private static int offer(long[] heap, int heapSize, int heapCapacity, long value)
+	{
+		if (heapSize<heapCapacity)
+		{
+			heap[heapSize] = value;
+			siftUp(heap, heapSize);
+			return heapSize+1;
+		}
+		
+		if (value<heap[0])
+		{
+			heap[0] = value;
+			siftDown(heap, heapSize);
+		}
+		
+		return heapSize;
+	}
+	
+	private static void siftDown(long[] heap, int size)
+	{
+		int parent = 0;
+		long value = heap[0];
+		while (true)
+		{
+			int child = 2*parent+1;
+			if (child>=size)
+				break;
+			if (child+1<size && heap[child+1]>heap[child])
+				child++;
+			if (heap[child]<=value)
+				break;
+			
+			heap[parent] = heap[child];
+			parent = child;
+		}
+		
+		heap[parent] = value;
+	}
+	
+	private static void siftUp(long[] heap, int index)
+	{
+		long value = heap[index];
+		while (index>0)
+		{
+			int parent = (index-1)/2;
+			if (heap[parent]>=value)
+				break;
+			
+			heap[index] = heap[parent];
+			index = parent;
+		}
+		
+		heap[index] = value;
+	}
+	
+	public boolean isCanonical()
+	{
+		return this.canonical;
+	}
+	
+	public boolean isFused()
+	{
+		return !HashUtils.USE_MURMUR_KMER_HASH 
+				&& this.kmerSize<=HashUtils.MAX_ROLLING_KMER_SIZE 
+				&& this.orderedKmerSize<=HashUtils.MAX_ROLLING_KMER_SIZE;
+	}
+	
+	public Pair<MinHashSketch, BottomOverlapSketch> sketch(String seq) throws ZeroNGramsFoundException
+	{
+		return sketch(seq, false, new SketchWorkspace());
+	}
+	
+	public Pair<MinHashSketch, BottomOverlapSketch> sketch(String seq, boolean reverseCompliment, SketchWorkspace workspace) throws ZeroNGramsFoundException
+	{
+		if (!isFused())
+			return sketchSeparately(seq, reverseCompliment, workspace);
+		
+		//the characters are rolled over directly, without packing them into a sequence
+		return sketchFused(null, seq, reverseCompliment, workspace);
+	}
+	
+	public Pair<MinHashSketch, BottomOverlapSketch> sketch(Sequence seq, boolean reverseCompliment, SketchWorkspace workspace) throws ZeroNGramsFoundException
+	{
+		if (!isFused())
+			return sketchSeparately(seq.getSquenceString(), reverseCompliment, workspace);
+		
+		return sketchFused(seq, null, reverseCompliment, workspace);
+	}
+	
+	//murmur hashing is string based, so sketch the two separately
+	private Pair<MinHashSketch, BottomOverlapSketch> sketchSeparately(String str, boolean reverseCompliment, SketchWorkspace workspace) throws ZeroNGramsFoundException
+	{
+		if (reverseCompliment)
+			str = Utils.rc(str);
+		
+		MinHashSketch minHash = new MinHashSketch(str, this.kmerSize, this.numHashes, this.kmerFilter, this.canonical, this.repeatWeight, this.mode, workspace);
+		BottomOverlapSketch ordered = new BottomOverlapSketch(str, this.orderedKmerSize, this.orderedSketchSize, this.canonical, workspace);
+		
+		return new Pair<>(minHash, ordered);
+	}
+	
+	/**
+	 * Sketches the packed sequence, or if it is null, the characters of the string.
+	 */
+	private Pair<MinHashSketch, BottomOverlapSketch> sketchFused(Sequence seq, String str, boolean reverseCompliment, SketchWorkspace workspace) throws ZeroNGramsFoundException
+	{
+		final int length = seq!=null ? seq.length() : str.length();
+		final int numberNGrams = length - this.kmerSize + 1;
+		final int numberOrderedNGrams = length - this.orderedKmerSize + 1;
+		
+		if (numberNGrams < 1)
+			throw new ZeroNGramsFoundException("N-gram size bigger than string length.", sequenceString(seq, str));
+		if (numberOrderedNGrams < 1)
+			throw new ZeroNGramsFoundException("Sequence length must be greater or equal to n-gram size "+this.orderedKmerSize+".", sequenceString(seq, str));
+		
+		final long mask = HashUtils.kmerMask(this.kmerSize);
+		final long orderedMask = HashUtils.kmerMask(this.orderedKmerSize);
+		final int maxSize = Math.max(this.kmerSize, this.orderedKmerSize);
+		
+		//counts of the k-mers used in the MinHash, the original version only needs the distinct k-mers
+		final KmerCounts counts = workspace.kmerCounts();
+		counts.clear();
+		counts.ensureCapacity(numberNGrams);
+		final boolean countKmers = this.repeatWeight>=0.0;
+		
+		//max-heap of the smallest (hash, position) pairs of the ordered k-mers
+		final int heapCapacity = Math.max(1, Math.min(this.orderedSketchSize, numberOrderedNGrams));
+		long[] heap = workspace.orderedValues(heapCapacity);
+		int heapSize = 0;
+		
+		//the reverse word is only needed for canonical k-mers, see sketchBothStrands()
+		final boolean canonical = this.canonical;
+		final int reverseShift = 2*(maxSize-1);
+		final int shift = 2*(maxSize-this.kmerSize);
+		final int orderedShift = 2*(maxSize-this.orderedKmerSize);
+		
+		final Sequence.CodeReader reader = seq!=null ? seq.codeReader(reverseCompliment) : null;
+		long word = 0L;
+		long reverseWord = 0L;
+		int validBases = 0;
+		for (int iter = 0; iter < length; iter++)
+		{
+			final int code = reader!=null ? reader.next() : stringCode(str, length, iter, reverseCompliment);
+			
+			// restart both k-mers after an ambiguous base
+			if (code<0)
+			{
+				validBases = 0;
+				continue;
+			}
+			
+			// the shorter k-mer is the suffix of the longer one, so one word holds both
+			word = (word<<2) | code;
+			if (canonical)
+				reverseWord = (reverseWord>>>2) | ((long)(3-code)<<reverseShift);
+			if (validBases<maxSize)
+				validBases++;
+			
+			if (validBases>=this.kmerSize)
+			{
+				long kmer = HashUtils.mix64(canonical ? canonicalKmer(word & mask, (reverseWord>>>shift) & mask) : word & mask);
+				
+				//do not add unique kmers to the sketch
+				if (this.kmerFilter==null || this.kmerFilter.keepKmer(kmer))
+				{
+					if (countKmers)
+						counts.add(kmer);
+					else
+						counts.append(kmer);
+				}
+			}
+			
+			if (validBases>=this.orderedKmerSize)
+			{
+				long orderedKmer = canonical ? canonicalKmer(word & orderedMask, (reverseWord>>>orderedShift) & orderedMask) : word & orderedMask;
+				long value = packHashPosition((int)HashUtils.mix64(orderedKmer), iter-this.orderedKmerSize+1);
+				heapSize = offer(heap, heapSize, heapCapacity, value);
+			}
+		}
+		
+		return finish(seq, str, counts, heap, heapSize, numberOrderedNGrams, workspace);
+	}
+	
+	//the compliment of a 2-bit code is 3-code
+	private static int stringCode(String str, int length, int iter, boolean reverseCompliment)
+	{
+		if (!reverseCompliment)
+			return HashUtils.nucleotideCode(str.charAt(iter));
+		
+		final int code = HashUtils.nucleotideCode(str.charAt(length-1-iter));
+		return code<0 ? code : 3-code;
+	}
+	
+	//only decoded for the error messages
+	private static String sequenceString(Sequence seq, String str)
+	{
+		return seq!=null ? seq.getSquenceString() : str;
+	}
+	
+	/**
+	 * Sketches both strands of the sequence in one forward pass. The k-mers of the reverse compliment are the reverse
+	 * compliments of the forward k-mers, so a second rolling word gives their hashes, and the k-mer ending at forward
+	 * position i starts at position length-1-i of the reverse compliment.
+	 * 
+	 * @return the sketches of the forward strand, and of the reverse compliment, which is null if only the reverse
+	 *         compliment has no valid k-mers after filtering
+	 */
+	public Pair<Pair<MinHashSketch, BottomOverlapSketch>, Pair<MinHashSketch, BottomOverlapSketch>> sketchBothStrands(Sequence seq, SketchWorkspace workspace) throws ZeroNGramsFoundException
+	{
+		if (!isFused() || this.canonical)
+		{
+			Pair<MinHashSketch, BottomOverlapSketch> forward = sketch(seq, false, workspace);
+			Pair<MinHashSketch, BottomOverlapSketch> reverse;
+			try
+			{
+				reverse = sketch(seq, true, workspace);
+			}
+			catch (ZeroNGramsFoundException e)
+			{
+				reverse = null;
+			}
+			
+			return new Pair<>(forward, reverse);
+		}
+		
+		final int length = seq.length();
+		final int numberNGrams = length - this.kmerSize + 1;
+		final int numberOrderedNGrams = length - this.orderedKmerSize + 1;
+		
+		if (numberNGrams < 1)
+			throw new ZeroNGramsFoundException("N-gram size bigger than string length.", seq.getSquenceString());
+		if (numberOrderedNGrams < 1)
+			throw new ZeroNGramsFoundException("Sequence length must be greater or equal to n-gram size "+this.orderedKmerSize+".", seq.getSquenceString());
+		
+		final long mask = HashUtils.kmerMask(this.kmerSize);
+		final long orderedMask = HashUtils.kmerMask(this.orderedKmerSize);
+		final int maxSize = Math.max(this.kmerSize, this.orderedKmerSize);
+		
+		//the reverse word holds the reverse compliment of the longest k-mer, the shorter ones are its prefix
+		final int reverseShift = 2*(maxSize-1);
+		final int shift = 2*(maxSize-this.kmerSize);
+		final int orderedShift = 2*(maxSize-this.orderedKmerSize);
+		
+		final KmerCounts counts = workspace.kmerCounts();
+		final KmerCounts reverseCounts = workspace.reverseKmerCounts();
+		counts.clear();
+		counts.ensureCapacity(numberNGrams);
+		reverseCounts.clear();
+		reverseCounts.ensureCapacity(numberNGrams);
+		final boolean countKmers = this.repeatWeight>=0.0;
+		
+		final int heapCapacity = Math.max(1, Math.min(this.orderedSketchSize, numberOrderedNGrams));
+		long[] heap = workspace.orderedValues(heapCapacity);
+		long[] reverseHeap = workspace.reverseOrderedValues(heapCapacity);
+		int heapSize = 0;
+		int reverseHeapSize = 0;
+		
+		final Sequence.CodeReader reader = seq.codeReader(false);
+		long word = 0L;
+		long reverseWord = 0L;
+		int validBases = 0;
+		for (int iter = 0; iter < length; iter++)
+		{
+			final int code = reader.next();
+			
+			// restart both k-mers after an ambiguous base
+			if (code<0)
+			{
+				validBases = 0;
+				continue;
+			}
+			
+			word = (word<<2) | code;
+			reverseWord = (reverseWord>>>2) | ((long)(3-code)<<reverseShift);
+			if (validBases<maxSize)
+				validBases++;
+			
+			if (validBases>=this.kmerSize)
+			{
+				long kmer = HashUtils.mix64(word & mask);
+				if (this.kmerFilter==null || this.kmerFilter.keepKmer(kmer))
+				{
+					if (countKmers)
+						counts.add(kmer);
+					else
+						counts.append(kmer);
+				}
+				
+				long reverseKmer = HashUtils.mix64((reverseWord>>>shift) & mask);
+				if (this.kmerFilter==null || this.kmerFilter.keepKmer(reverseKmer))
+				{
+					if (countKmers)
+						reverseCounts.add(reverseKmer);
+					else
+						reverseCounts.append(reverseKmer);
+				}
+			}
+			
+			if (validBases>=this.orderedKmerSize)
+			{
+				long value = packHashPosition((int)HashUtils.mix64(word & orderedMask), iter-this.orderedKmerSize+1);
+				heapSize = offer(heap, heapSize, heapCapacity, value);
+				
+				long reverseValue = packHashPosition((int)HashUtils.mix64((reverseWord>>>orderedShift) & orderedMask), length-1-iter);
+				reverseHeapSize = offer(reverseHeap, reverseHeapSize, heapCapacity, reverseValue);
+			}
+		}
+		
+		Pair<MinHashSketch, BottomOverlapSketch> forward = finish(seq, null, counts, heap, heapSize, numberOrderedNGrams, workspace);
+		Pair<MinHashSketch, BottomOverlapSketch> reverse;
+		try
+		{
+			reverse = finish(seq, null, reverseCounts, reverseHeap, reverseHeapSize, numberOrderedNGrams, workspace);
+		}
+		catch (ZeroNGramsFoundException e)
+		{
+			reverse = null;
+		}
+		
+		return new Pair<>(forward, reverse);
+	}
+	
+	private Pair<MinHashSketch, BottomOverlapSketch> finish(Sequence seq, String str, KmerCounts counts, long[] heap, int heapSize, int numberOrderedNGrams, SketchWorkspace workspace) throws ZeroNGramsFoundException
+	{
+		if (heapSize<=0)
+			throw new ZeroNGramsFoundException("Found zero valid n-grams in the string.", sequenceString(seq, str));
+
+		//the k-mers were appended without counting
+		if (this.repeatWeight<0.0)
+			counts.sortUnique();
+		
+		//the sequence is only decoded for the error message
+		int[] minHashes;
+		try
+		{
+			minHashes = MinHashSketch.computeNgramMinHashesWeighted(counts, this.numHashes, this.kmerFilter, this.repeatWeight, this.mode, workspace, null);
+		}
+		catch (ZeroNGramsFoundException e)
+		{
+			throw new ZeroNGramsFoundException(e.getMessage(), sequenceString(seq, str));
+		}
+		
+		//order the bottom-k by hash, and by position within the same hash
+		Arrays.sort(heap, 0, heapSize);
+		int[] orderedHashes = new int[heapSize];
+		int[] orderedPositions = new int[heapSize];
+		for (int iter = 0; iter < heapSize; iter++)
+		{
+			orderedHashes[iter] = (int)(heap[iter]>>>32);
+			orderedPositions[iter] = (int)heap[iter];
+		}
+		
+		return new Pair<>(new MinHashSketch(minHashes), new BottomOverlapSketch(numberOrderedNGrams, this.orderedKmerSize, orderedHashes, orderedPositions));
+	}
+}
@@ -0,0 +1,240 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.sketch;
+
+import it.unimi.dsi.fastutil.HashCommon;
+
+import java.util.Arrays;
+
+/**
+ * Scratch buffers for scoring overlaps of BottomOverlapSketch pairs, owned by a single thread and reused between the
+ * pairs it compares. Once the buffers fit the largest sketch, only the resulting OverlapInfo is allocated per pair.
+ * A query sketch that is compared to many candidates can be prepared once with prepareQuery(), after which the
+ * k-mers of every candidate are looked up in a table of the query, instead of merged with the whole query. A packed
+ * query is decoded once into the workspace. Not thread safe.
+ */
+public final class OverlapWorkspace
+{
+	/**
+	 * Open-addressing table from each distinct hash of the query to its run of k-mers in the sorted sketch.
+	 */
+	final static class QueryTable
+	{
+		private int[] keys;
+		private int mask;
+		private int[] runEnds;
+		private int[] runStarts;
+		private BottomOverlapSketch sketch;
+		
+		QueryTable()
+		{
+			this.keys = new int[0];
+			this.runEnds = new int[0];
+			this.runStarts = new int[0];
+			this.mask = -1;
+			this.sketch = null;
+		}
+		
+		/**
+		 * @return the slot of the hash, or -1 if the query does not have it
+		 */
+		int find(int hash)
+		{
+			int slot = HashCommon.mix(hash) & this.mask;
+			while (this.runEnds[slot]!=0)
+			{
+				if (this.keys[slot]==hash)
+					return slot;
+				
+				slot = (slot+1) & this.mask;
+			}
+			
+			return -1;
+		}
+		
+		void prepare(BottomOverlapSketch query, int[] hashes, int size)
+		{
+			int tableSize = HashCommon.arraySize(Math.max(1, size), .5f);
+			if (this.keys.length<tableSize)
+			{
+				this.keys = new int[tableSize];
+				this.runEnds = new int[tableSize];
+				this.runStarts = new int[tableSize];
+			}
+			else
+			{
+				tableSize = this.keys.length;
+				Arrays.fill(this.runEnds, 0);
+			}
+			this.mask = tableSize-1;
+			
+			// an end of 0 marks an empty slot, every run ends after its first k-mer
+			int start = 0;
+			while (start<size)
+			{
+				int end = start+1;
+				while (end<size && hashes[end]==hashes[start])
+					end++;
+				
+				int slot = HashCommon.mix(hashes[start]) & this.mask;
+				while (this.runEnds[slot]!=0)
+					slot = (slot+1) & this.mask;
+				
+				this.keys[slot] = hashes[start];
+				this.runStarts[slot] = start;
+				this.runEnds[slot] = end;
+				
+				start = end;
+			}
+			
+			this.sketch = query;
+		}
+		
+		int runEnd(int slot)
+		{
+			return this.runEnds[slot];
+		}
+		
+		int runStart(int slot)
+		{
+			return this.runStarts[slot];
+		}
+	}
+	
+
+	private final PackedKmerArray.Cursor cursor;
+	private BottomOverlapSketch decodedQuery;
+	private int[] filteredHashes1;
+	private int[] filteredHashes2;
+	private final BottomOverlapSketch.MatchData matchData;
+	private int[] queryHashes;
+	private int[] queryPositions;
+	private final QueryTable queryTable;
+	private int[] runPositions;
+	
+	public OverlapWorkspace()
+	{
+		this.cursor = new PackedKmerArray.Cursor();
+		this.decodedQuery = null;
+		this.filteredHashes1 = new int[0];
+		this.filteredHashes2 = new int[0];
+		this.matchData = new BottomOverlapSketch.MatchData();
+		this.queryHashes = new int[0];
+		this.queryPositions = new int[0];
+		this.queryTable = new QueryTable();
+		this.runPositions = new int[0];
+	}
+	
+	PackedKmerArray.Cursor cursor()
+	{
+		return this.cursor;
+	}
+	
+	/**
+	 * Decodes the k-mers of the sketch into queryHashes() and queryPositions(), unless they already hold them.
+	 */
+	void decodeQuery(BottomOverlapSketch query)
+	{
+		if (this.decodedQuery==query)
+			return;
+		
+		if (this.queryHashes.length<query.size())
+		{
+			this.queryHashes = new int[query.size()];
+			this.queryPositions = new int[query.size()];
+		}
+		
+		query.decode(this.queryHashes, this.queryPositions, this.cursor);
+		this.decodedQuery = query;
+	}
+	
+	int[] filteredHashes1(int minSize)
+	{
+		if (this.filteredHashes1.length<minSize)
+			this.filteredHashes1 = new int[minSize];
+		
+		return this.filteredHashes1;
+	}
+	
+	int[] filteredHashes2(int minSize)
+	{
+		if (this.filteredHashes2.length<minSize)
+			this.filteredHashes2 = new int[minSize];
+		
+		return this.filteredHashes2;
+	}
+	
+	/**
+	 * @return the table of the sketch, or null if it is not the prepared query
+	 */
+	QueryTable getQueryTable(BottomOverlapSketch sketch)
+	{
+		return this.queryTable.sketch==sketch ? this.queryTable : null;
+	}
+	
+	/**
+	 * Indexes the k-mers of the query sketch, so its following comparisons to candidates only walk the candidates.
+	 */
+	public void prepareQuery(BottomOverlapSketch query)
+	{
+		if (this.queryTable.sketch==query)
+			return;
+		
+		if (query.isPacked())
+		{
+			decodeQuery(query);
+			this.queryTable.prepare(query, this.queryHashes, query.size());
+		}
+		else
+			this.queryTable.prepare(query, query.getHashes(), query.size());
+	}
+	
+	BottomOverlapSketch.MatchData matchData()
+	{
+		return this.matchData;
+	}
+	
+	int[] queryHashes()
+	{
+		return this.queryHashes;
+	}
+	
+	int[] queryPositions()
+	{
+		return this.queryPositions;
+	}
+	
+	int[] runPositions(int minSize)
+	{
+		if (this.runPositions.length<minSize)
+			this.runPositions = new int[minSize];
+		
+		return this.runPositions;
+	}
+}
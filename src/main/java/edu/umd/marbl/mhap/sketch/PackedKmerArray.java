@@ -0,0 +1,213 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.sketch;
+
+/**
+ * Bit-packed (hash, position) pairs of a bottom-k sketch, sorted by hash. The pairs are stored in blocks of
+ * BLOCK_SIZE, each with the first hash and the bit offset in a skip table. Within a block, every hash is stored as the
+ * difference from the previous one in the bit width of the largest difference of the block, followed by the position
+ * in the bit width of the largest position of the sketch. Decoded sequentially with a Cursor.
+ */
+final class PackedKmerArray
+{
+	/**
+	 * Sequential decoder of the pairs. Reusable for different arrays, not thread safe.
+	 */
+	final static class Cursor
+	{
+		private PackedKmerArray array;
+		private long bitPosition;
+		private int deltaBits;
+		private int index;
+		
+		public int hash;
+		public int position;
+		
+		/**
+		 * Decodes the next pair into hash and position.
+		 * 
+		 * @return false if all the pairs were read
+		 */
+		boolean next()
+		{
+			final PackedKmerArray packed = this.array;
+			if (this.index>=packed.size)
+				return false;
+			
+			if ((this.index & BLOCK_MASK)==0)
+			{
+				int block = this.index>>>BLOCK_SHIFT;
+				this.bitPosition = packed.blockOffsets[block];
+				this.deltaBits = packed.deltaBits[block];
+				this.hash = packed.blockFirstHashes[block];
+			}
+			
+			this.hash += (int)readBits(packed.bits, this.bitPosition, this.deltaBits);
+			this.position = (int)readBits(packed.bits, this.bitPosition+this.deltaBits, packed.positionBits);
+			this.bitPosition += this.deltaBits+packed.positionBits;
+			this.index++;
+			
+			return true;
+		}
+		
+		void reset(PackedKmerArray array)
+		{
+			this.array = array;
+			this.index = 0;
+		}
+	}
+	
+	private final static int BLOCK_SHIFT = 6;
+	private final static int BLOCK_SIZE = 1<<BLOCK_SHIFT;
+	private final static int BLOCK_MASK = BLOCK_SIZE-1;
+	
+	private final long[] bits;
+	private final int[] blockFirstHashes;
+	private final int[] blockOffsets;
+	private final byte[] deltaBits;
+	private final int positionBits;
+	private final int size;
+	
+	private static int bitWidth(long value)
+	{
+		return 64-Long.numberOfLeadingZeros(value);
+	}
+	
+	private static long readBits(long[] bits, long bitPosition, int width)
+	{
+		if (width==0)
+			return 0L;
+		
+		int word = (int)(bitPosition>>>6);
+		int offset = (int)(bitPosition & 63L);
+		long value = bits[word]>>>offset;
+		if (offset+width>64)
+			value |= bits[word+1]<<(64-offset);
+		
+		return value & (-1L>>>(64-width));
+	}
+	
+	private static void writeBits(long[] bits, long bitPosition, int width, long value)
+	{
+		if (width==0)
+			return;
+		
+		int word = (int)(bitPosition>>>6);
+		int offset = (int)(bitPosition & 63L);
+		bits[word] |= value<<offset;
+		if (offset+width>64)
+			bits[word+1] |= value>>>(64-offset);
+	}
+	
+	PackedKmerArray(int[] hashes, int[] positions)
+	{
+		this.size = hashes.length;
+		
+		int maxPosition = 0;
+		for (int position : positions)
+			maxPosition = Math.max(maxPosition, position);
+		this.positionBits = bitWidth(maxPosition);
+		
+		int numBlocks = (this.size+BLOCK_SIZE-1)>>>BLOCK_SHIFT;
+		this.blockFirstHashes = new int[numBlocks];
+		this.blockOffsets = new int[numBlocks];
+		this.deltaBits = new byte[numBlocks];
+		
+		//the hashes are sorted as signed values, so the differences are non-negative as unsigned values
+		long totalBits = 0L;
+		for (int block = 0; block < numBlocks; block++)
+		{
+			int start = block<<BLOCK_SHIFT;
+			int end = Math.min(this.size, start+BLOCK_SIZE);
+			
+			long maxDelta = 0L;
+			for (int iter = start+1; iter < end; iter++)
+				maxDelta = Math.max(maxDelta, (long)hashes[iter]-(long)hashes[iter-1]);
+			
+			this.blockFirstHashes[block] = hashes[start];
+			this.blockOffsets[block] = (int)totalBits;
+			this.deltaBits[block] = (byte)bitWidth(maxDelta);
+			totalBits += (long)(end-start)*(this.deltaBits[block]+this.positionBits);
+		}
+		
+		if (totalBits>Integer.MAX_VALUE)
+			throw new SketchRuntimeException("Sketch is too large to pack.");
+		
+		this.bits = new long[(int)((totalBits+63L)>>>6)];
+		long bitPosition = 0L;
+		for (int iter = 0; iter < this.size; iter++)
+		{
+			int width = this.deltaBits[iter>>>BLOCK_SHIFT];
+			long delta = (iter & BLOCK_MASK)==0 ? 0L : (long)hashes[iter]-(long)hashes[iter-1];
+			
+			writeBits(this.bits, bitPosition, width, delta);
+			writeBits(this.bits, bitPosition+width, this.positionBits, positions[iter]);
+			bitPosition += width+this.positionBits;
+		}
+	}
+	
+	/**
+	 * Decodes all the pairs into the arrays, which must fit size() values.
+	 */
+	void decode(int[] hashes, int[] positions, Cursor cursor)
+	{
+		cursor.reset(this);
+		for (int iter = 0; cursor.next(); iter++)
+		{
+			hashes[iter] = cursor.hash;
+			positions[iter] = cursor.position;
+		}
+	}
+	
+	int getHash(int index)
+	{
+		//decode from the start of the block
+		int block = index>>>BLOCK_SHIFT;
+		int width = this.deltaBits[block];
+		long bitPosition = this.blockOffsets[block];
+		int hash = this.blockFirstHashes[block];
+		for (int iter = block<<BLOCK_SHIFT; iter <= index; iter++)
+		{
+			hash += (int)readBits(this.bits, bitPosition, width);
+			bitPosition += width+this.positionBits;
+		}
+		
+		return hash;
+	}
+	
+	int size()
+	{
+		return this.size;
+	}
+	
+	long sizeInBytes()
+	{
+		return 8L*this.bits.length+9L*this.blockOffsets.length;
+	}
+}
@@ -0,0 +1,121 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.sketch;
+
+/**
+ * Scratch buffers for computing sketches, owned by a single thread and reused between the sequences it sketches.
+ * The buffers only grow, so once they fit the largest sequence only the final sketch arrays are allocated per
+ * sequence. Not thread safe.
+ */
+public final class SketchWorkspace
+{
+	private double[] bestSamples;
+	private long[] bestValues;
+	private int[] hashes;
+	private final KmerCounts kmerCounts;
+	private long[] orderedValues;
+	private int[] positions;
+	private final KmerCounts reverseKmerCounts;
+	private long[] reverseOrderedValues;
+	
+	public SketchWorkspace()
+	{
+		this.bestSamples = new double[0];
+		this.bestValues = new long[0];
+		this.hashes = new int[0];
+		this.kmerCounts = new KmerCounts();
+		this.orderedValues = new long[0];
+		this.positions = new int[0];
+		this.reverseKmerCounts = new KmerCounts();
+		this.reverseOrderedValues = new long[0];
+	}
+	
+	private static int grownSize(int currentSize, int minSize)
+	{
+		return Math.max(minSize, currentSize+currentSize/2);
+	}
+	
+	double[] bestSamples(int minSize)
+	{
+		if (this.bestSamples.length<minSize)
+			this.bestSamples = new double[grownSize(this.bestSamples.length, minSize)];
+		
+		return this.bestSamples;
+	}
+	
+	long[] bestValues(int minSize)
+	{
+		if (this.bestValues.length<minSize)
+			this.bestValues = new long[grownSize(this.bestValues.length, minSize)];
+		
+		return this.bestValues;
+	}
+	
+	int[] hashes(int minSize)
+	{
+		if (this.hashes.length<minSize)
+			this.hashes = new int[grownSize(this.hashes.length, minSize)];
+		
+		return this.hashes;
+	}
+	
+	KmerCounts kmerCounts()
+	{
+		return this.kmerCounts;
+	}
+	
+	long[] orderedValues(int minSize)
+	{
+		if (this.orderedValues.length<minSize)
+			this.orderedValues = new long[grownSize(this.orderedValues.length, minSize)];
+		
+		return this.orderedValues;
+	}
+	
+	int[] positions(int minSize)
+	{
+		if (this.positions.length<minSize)
+			this.positions = new int[grownSize(this.positions.length, minSize)];
+		
+		return this.positions;
+	}
+	
+	KmerCounts reverseKmerCounts()
+	{
+		return this.reverseKmerCounts;
+	}
+	
+	long[] reverseOrderedValues(int minSize)
+	{
+		if (this.reverseOrderedValues.length<minSize)
+			this.reverseOrderedValues = new long[grownSize(this.reverseOrderedValues.length, minSize)];
+		
+		return this.reverseOrderedValues;
+	}
+}
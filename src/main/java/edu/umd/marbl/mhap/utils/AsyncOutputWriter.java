@@ -0,0 +1,173 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Writes the full buffers of the formatting threads to a channel from a single writer thread. The buffers are handed
+ * over through a bounded queue, so the formatting threads only wait when the channel can not keep up, and the written
+ * arrays are handed back to the formatting threads for reuse.
+ */
+public final class AsyncOutputWriter implements Closeable
+{
+	private final WritableByteChannel channel;
+	private volatile IOException failure;
+	private final ArrayBlockingQueue<byte[]> freeArrays;
+	private final ArrayBlockingQueue<ByteBuffer> fullBuffers;
+	private long submitted;
+	private Thread writer;
+	private long written;
+	
+	public AsyncOutputWriter(WritableByteChannel channel, int queueSize)
+	{
+		this.channel = channel;
+		this.fullBuffers = new ArrayBlockingQueue<>(queueSize);
+		this.freeArrays = new ArrayBlockingQueue<>(queueSize);
+		this.submitted = 0L;
+		this.written = 0L;
+		this.writer = null;
+	}
+	
+	@Override
+	public void close() throws IOException
+	{
+		flush();
+		
+		synchronized (this)
+		{
+			if (this.writer!=null)
+				this.writer.interrupt();
+		}
+		this.channel.close();
+	}
+	
+	/**
+	 * Waits until all the buffers handed over so far are written.
+	 */
+	public synchronized void flush() throws IOException
+	{
+		try
+		{
+			while (this.written<this.submitted && this.failure==null)
+				wait();
+		}
+		catch (InterruptedException e)
+		{
+			throw new IOException("Interrupted while waiting for the output to be written.");
+		}
+		
+		if (this.failure!=null)
+			throw this.failure;
+	}
+	
+	private void run()
+	{
+		try
+		{
+			while (true)
+			{
+				ByteBuffer buffer = this.fullBuffers.take();
+				
+				// after a failure the buffers are only drained, so no formatting thread waits forever
+				if (this.failure==null)
+				{
+					try
+					{
+						while (buffer.hasRemaining())
+							this.channel.write(buffer);
+					}
+					catch (IOException e)
+					{
+						this.failure = e;
+					}
+				}
+				
+				this.freeArrays.offer(buffer.array());
+				
+				synchronized (this)
+				{
+					this.written++;
+					notifyAll();
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			// closed
+		}
+	}
+	
+	/**
+	 * Hands the content of the buffer to the writer thread, and empties the buffer with an array that was already
+	 * written.
+	 */
+	public void write(OutputBuffer buffer) throws IOException
+	{
+		if (this.failure!=null)
+			throw this.failure;
+		if (buffer.isEmpty())
+			return;
+		
+		synchronized (this)
+		{
+			// the thread is only started by the first output
+			if (this.writer==null)
+			{
+				this.writer = new Thread(this::run, "output-writer");
+				this.writer.setDaemon(true);
+				this.writer.start();
+			}
+			
+			this.submitted++;
+		}
+		
+		try
+		{
+			this.fullBuffers.put(ByteBuffer.wrap(buffer.array(), 0, buffer.length()));
+		}
+		catch (InterruptedException e)
+		{
+			synchronized (this)
+			{
+				this.submitted--;
+				notifyAll();
+			}
+			
+			throw new IOException("Interrupted while handing over the output.");
+		}
+		
+		byte[] free = this.freeArrays.poll();
+		buffer.reset(free!=null && free.length>=buffer.capacity()/2 ? free : new byte[buffer.capacity()]);
+	}
+}
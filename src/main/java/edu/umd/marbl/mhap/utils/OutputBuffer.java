@@ -0,0 +1,247 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.utils;
+
+import java.nio.charset.Charset;
+import java.text.DecimalFormatSymbols;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A growable byte buffer that text is formatted into directly, with the same output as String.format for the integer
+ * and fixed precision decimal conversions, but without creating a formatter and strings for every value. The
+ * buffers are meant to be reused by a single thread, and handed to an AsyncOutputWriter when full.
+ */
+public final class OutputBuffer
+{
+	private byte[] bytes;
+	private int length;
+	
+	private final static Charset CHARSET = Charset.defaultCharset();
+	private final static byte DECIMAL_SEPARATOR;
+	private final static String[] FIXED_FORMATS = {"%.0f", "%.1f", "%.2f", "%.3f", "%.4f", "%.5f", "%.6f"};
+	private final static byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(CHARSET);
+	private final static long[] POWERS_OF_TEN = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L};
+	private final static byte ZERO_DIGIT;
+	
+	//the formatter localizes the digits and the decimal separator, only ascii ones are written directly
+	static
+	{
+		DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(Locale.getDefault(Locale.Category.FORMAT));
+		
+		ZERO_DIGIT = symbols.getZeroDigit()=='0' ? (byte)'0' : 0;
+		DECIMAL_SEPARATOR = symbols.getDecimalSeparator()<0x80 ? (byte)symbols.getDecimalSeparator() : 0;
+	}
+	
+	public OutputBuffer(int capacity)
+	{
+		this.bytes = new byte[capacity];
+		this.length = 0;
+	}
+	
+	public OutputBuffer append(char c)
+	{
+		if (c>=0x80)
+			return append(String.valueOf(c));
+		
+		ensureCapacity(1);
+		this.bytes[this.length++] = (byte)c;
+		
+		return this;
+	}
+	
+	/**
+	 * Appends the value, as String.valueOf(long) does.
+	 */
+	public OutputBuffer append(long value)
+	{
+		if (value<0L)
+		{
+			if (value==Long.MIN_VALUE)
+				return append(String.valueOf(value));
+			
+			append('-');
+			value = -value;
+		}
+		
+		return appendDigits(value, (byte)'0');
+	}
+	
+	private OutputBuffer appendDigits(long value, byte zeroDigit)
+	{
+		int numDigits = 1;
+		for (long remainder = value/10L; remainder>0L; remainder /= 10L)
+			numDigits++;
+		
+		ensureCapacity(numDigits);
+		for (int iter = this.length+numDigits-1; iter >= this.length; iter--)
+		{
+			this.bytes[iter] = (byte)(zeroDigit+value%10L);
+			value /= 10L;
+		}
+		this.length += numDigits;
+		
+		return this;
+	}
+	
+	/**
+	 * Appends the value rounded to the number of decimals, as String.format("%.Nf") does.
+	 */
+	public OutputBuffer format(double value, int decimals)
+	{
+		// only values far from a rounding tie are rounded directly, the formatter rounds the shortest decimal
+		// representation of the value half up, which is only known for sure close to the tie by computing it
+		if (ZERO_DIGIT!=0 && DECIMAL_SEPARATOR!=0 && decimals<POWERS_OF_TEN.length && value<1.0e4
+				&& (value>0.0 || Double.doubleToRawLongBits(value)==0L))
+		{
+			long scale = POWERS_OF_TEN[decimals];
+			double scaled = value*(double)scale;
+			double floor = Math.floor(scaled);
+			double fraction = scaled-floor;
+			if (Math.abs(fraction-0.5)>1.0e-3)
+			{
+				long rounded = (long)floor+(fraction>0.5 ? 1L : 0L);
+				
+				appendDigits(rounded/scale, ZERO_DIGIT);
+				if (decimals>0)
+				{
+					ensureCapacity(decimals+1);
+					this.bytes[this.length++] = DECIMAL_SEPARATOR;
+					
+					long remainder = rounded%scale;
+					for (int iter = decimals-1; iter >= 0; iter--)
+					{
+						this.bytes[this.length+iter] = (byte)(ZERO_DIGIT+remainder%10L);
+						remainder /= 10L;
+					}
+					this.length += decimals;
+				}
+				
+				return this;
+			}
+		}
+		
+		if (decimals<FIXED_FORMATS.length)
+			return append(String.format(FIXED_FORMATS[decimals], value));
+		
+		return append(String.format("%."+decimals+"f", value));
+	}
+	
+	/**
+	 * Appends the value, as String.format("%d") does.
+	 */
+	public OutputBuffer format(long value)
+	{
+		// the formatter uses a localized minus sign
+		if (value<0L || ZERO_DIGIT==0)
+			return append(String.format("%d", value));
+		
+		return appendDigits(value, ZERO_DIGIT);
+	}
+	
+	public OutputBuffer append(String str)
+	{
+		int strLength = str.length();
+		ensureCapacity(strLength);
+		
+		//ascii is copied directly, anything else is encoded
+		for (int iter = 0; iter < strLength; iter++)
+		{
+			char c = str.charAt(iter);
+			if (c>=0x80)
+			{
+				byte[] encoded = str.substring(iter).getBytes(CHARSET);
+				ensureCapacity(encoded.length);
+				System.arraycopy(encoded, 0, this.bytes, this.length, encoded.length);
+				this.length += encoded.length;
+				
+				return this;
+			}
+			
+			this.bytes[this.length++] = (byte)c;
+		}
+		
+		return this;
+	}
+	
+	public OutputBuffer appendLine()
+	{
+		ensureCapacity(LINE_SEPARATOR.length);
+		System.arraycopy(LINE_SEPARATOR, 0, this.bytes, this.length, LINE_SEPARATOR.length);
+		this.length += LINE_SEPARATOR.length;
+		
+		return this;
+	}
+	
+	public byte[] array()
+	{
+		return this.bytes;
+	}
+	
+	public int capacity()
+	{
+		return this.bytes.length;
+	}
+	
+	public void clear()
+	{
+		this.length = 0;
+	}
+	
+	private void ensureCapacity(int additional)
+	{
+		if (this.length+additional>this.bytes.length)
+			this.bytes = Arrays.copyOf(this.bytes, Math.max(this.length+additional, this.bytes.length*2));
+	}
+	
+	public boolean isEmpty()
+	{
+		return this.length==0;
+	}
+	
+	public int length()
+	{
+		return this.length;
+	}
+	
+	/**
+	 * Replaces the array of the buffer, and empties it.
+	 */
+	public void reset(byte[] bytes)
+	{
+		this.bytes = bytes;
+		this.length = 0;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return new String(this.bytes, 0, this.length, CHARSET);
+	}
+}
@@ -0,0 +1,694 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+
+/**
+ * Decompresses a gzip or bzip2 file ahead of the reader. A producer thread splits the compressed file into
+ * independent units, which are decompressed by a pool of threads, and handed to the reader in the order of the file
+ * through a bounded queue. BGZF files (and other gzip files whose members store their size) are split into members,
+ * bzip2 files into their blocks, which are found by their 48-bit magic. Other gzip files can only be decompressed
+ * sequentially, which the producer thread does ahead of the reader.
+ * <p>
+ * If a unit cannot be decompressed, for example because the bzip2 magic also occurred inside the compressed data, the
+ * rest of the file is read with the sequential decompressor instead.
+ */
+public final class ParallelDecompressionInputStream extends InputStream
+{
+	private abstract static class Splitter
+	{
+		abstract void close() throws IOException;
+		
+		/**
+		 * @return the decompressed bytes of the unit
+		 */
+		abstract byte[] decode(byte[] unit) throws IOException;
+		
+		/**
+		 * @return the next unit, or null at the end of the file
+		 */
+		abstract byte[] nextUnit() throws IOException;
+	}
+	
+	/**
+	 * Reads the gzip members by the BGZF block size, and decodes each member separately.
+	 */
+	private final static class BgzfSplitter extends Splitter
+	{
+		private final DataInputStream input;
+		
+		BgzfSplitter(InputStream input)
+		{
+			this.input = new DataInputStream(input);
+		}
+		
+		@Override
+		void close() throws IOException
+		{
+			this.input.close();
+		}
+		
+		@Override
+		byte[] decode(byte[] member) throws IOException
+		{
+			// skip the header fields
+			int flags = member[3] & 0xFF;
+			int position = 12+readShort(member, 10);
+			if ((flags & 8)!=0)
+				while (member[position++]!=0) {}
+			if ((flags & 16)!=0)
+				while (member[position++]!=0) {}
+			if ((flags & 2)!=0)
+				position += 2;
+			
+			int crc = readInt(member, member.length-8);
+			int size = readInt(member, member.length-4);
+			byte[] data = new byte[size];
+			
+			Inflater inflater = new Inflater(true);
+			try
+			{
+				inflater.setInput(member, position, member.length-8-position);
+				int count = 0;
+				while (count<size)
+				{
+					int inflated = inflater.inflate(data, count, size-count);
+					if (inflated==0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+						break;
+					count += inflated;
+				}
+				if (count!=size)
+					throw new IOException("Gzip member is shorter than its stored size.");
+			}
+			catch (DataFormatException e)
+			{
+				throw new IOException(e);
+			}
+			finally
+			{
+				inflater.end();
+			}
+			
+			CRC32 check = new CRC32();
+			check.update(data, 0, size);
+			if ((int)check.getValue()!=crc)
+				throw new IOException("Gzip member CRC does not match.");
+			
+			return data;
+		}
+		
+		/**
+		 * @return the block size stored in the header, or -1 if the header does not have it
+		 */
+		private static int getBlockSize(byte[] header, int extraLength)
+		{
+			int position = 12;
+			while (position+4<=12+extraLength)
+			{
+				int fieldLength = readShort(header, position+2);
+				if (header[position]=='B' && header[position+1]=='C' && fieldLength==2)
+					return readShort(header, position+4)+1;
+				position += 4+fieldLength;
+			}
+			
+			return -1;
+		}
+		
+		static boolean isBgzf(byte[] header, int length)
+		{
+			if (length<18 || (header[0] & 0xFF)!=0x1f || (header[1] & 0xFF)!=0x8b || (header[3] & 4)==0)
+				return false;
+			
+			return getBlockSize(header, Math.min(readShort(header, 10), length-12))>0;
+		}
+		
+		@Override
+		byte[] nextUnit() throws IOException
+		{
+			byte[] header = new byte[12];
+			int first = this.input.read();
+			if (first<0)
+				return null;
+			header[0] = (byte)first;
+			this.input.readFully(header, 1, 11);
+			
+			if ((header[0] & 0xFF)!=0x1f || (header[1] & 0xFF)!=0x8b || (header[3] & 4)==0)
+				throw new IOException("Gzip member does not store its size.");
+			
+			int extraLength = readShort(header, 10);
+			byte[] member = Arrays.copyOf(header, 12+extraLength);
+			this.input.readFully(member, 12, extraLength);
+			
+			int blockSize = getBlockSize(member, extraLength);
+			if (blockSize<member.length+8)
+				throw new IOException("Gzip member does not store its size.");
+			
+			member = Arrays.copyOf(member, blockSize);
+			this.input.readFully(member, 12+extraLength, blockSize-12-extraLength);
+			
+			return member;
+		}
+		
+		private static int readInt(byte[] data, int position)
+		{
+			return (data[position] & 0xFF) | (data[position+1] & 0xFF)<<8 | (data[position+2] & 0xFF)<<16 | (data[position+3] & 0xFF)<<24;
+		}
+		
+		private static int readShort(byte[] data, int position)
+		{
+			return (data[position] & 0xFF) | (data[position+1] & 0xFF)<<8;
+		}
+	}
+	
+	/**
+	 * Finds the bzip2 blocks by their magic at any bit offset, and decodes each block as a bzip2 stream of its own.
+	 */
+	private final static class Bzip2Splitter extends Splitter
+	{
+		private final static long BLOCK_MAGIC = 0x314159265359L;
+		private final static long END_MAGIC = 0x177245385090L;
+		private final static long MAGIC_MASK = 0xFFFFFFFFFFFFL;
+		
+		private long blockStart;
+		private byte[] buffer;
+		private int bufferLength;
+		//the file offset of the first byte of the buffer
+		private long bufferOffset;
+		private boolean endOfFile;
+		private final InputStream input;
+		
+		Bzip2Splitter(InputStream input)
+		{
+			this.input = input;
+			this.buffer = new byte[1<<22];
+			this.bufferLength = 0;
+			this.bufferOffset = 0L;
+			this.blockStart = -1L;
+			this.endOfFile = false;
+		}
+		
+		@Override
+		void close() throws IOException
+		{
+			this.input.close();
+		}
+		
+		@Override
+		byte[] decode(byte[] unit) throws IOException
+		{
+			ByteArrayOutputStream output = new ByteArrayOutputStream(unit.length*5);
+			try (BZip2CompressorInputStream stream = new BZip2CompressorInputStream(new ByteArrayInputStream(unit), false))
+			{
+				byte[] bytes = new byte[1<<16];
+				int count;
+				while ((count = stream.read(bytes))>=0)
+					output.write(bytes, 0, count);
+			}
+			
+			return output.toByteArray();
+		}
+		
+		/**
+		 * @return false if the file has no more bytes
+		 */
+		private boolean fill(long bitPosition) throws IOException
+		{
+			// keep the bytes of the current block
+			long keep = this.blockStart>=0L ? this.blockStart>>>3 : bitPosition>>>3;
+			int discard = (int)Math.min(keep-this.bufferOffset, this.bufferLength);
+			if (discard>0)
+			{
+				System.arraycopy(this.buffer, discard, this.buffer, 0, this.bufferLength-discard);
+				this.bufferLength -= discard;
+				this.bufferOffset += discard;
+			}
+			if (this.bufferLength==this.buffer.length)
+				this.buffer = Arrays.copyOf(this.buffer, this.buffer.length*2);
+			
+			int count = this.input.read(this.buffer, this.bufferLength, this.buffer.length-this.bufferLength);
+			if (count<0)
+			{
+				this.endOfFile = true;
+				return false;
+			}
+			
+			this.bufferLength += count;
+			return true;
+		}
+		
+		/**
+		 * @return the 48 bits at the bit position, or -1 if the file is shorter
+		 */
+		private long read48(long bitPosition) throws IOException
+		{
+			while ((bitPosition+48+7>>>3)-this.bufferOffset>this.bufferLength)
+				if (this.endOfFile || !fill(bitPosition))
+					return -1L;
+			
+			int index = (int)((bitPosition>>>3)-this.bufferOffset);
+			long value = 0L;
+			for (int iter = 0; iter < 7 && index+iter<this.bufferLength; iter++)
+				value |= (this.buffer[index+iter] & 0xFFL)<<(48-8*iter);
+			
+			return (value>>>(8-(int)(bitPosition & 7L))) & MAGIC_MASK;
+		}
+		
+		/**
+		 * @return the bit position of the next block or end of stream magic, or -1 at the end of the file
+		 */
+		private long findMagic(long bitPosition) throws IOException
+		{
+			while (true)
+			{
+				long value = read48(bitPosition);
+				if (value<0L)
+					return -1L;
+				
+				// check all the bit offsets within the window
+				int index = (int)((bitPosition>>>3)-this.bufferOffset);
+				int shift = (int)(bitPosition & 7L);
+				int limit = this.bufferLength-8;
+				for (; index<limit; index++, shift = 0)
+				{
+					long window = 0L;
+					for (int iter = 0; iter < 8; iter++)
+						window = (window<<8) | (this.buffer[index+iter] & 0xFFL);
+					
+					for (int offset = shift; offset < 8; offset++)
+					{
+						long candidate = (window>>>(16-offset)) & MAGIC_MASK;
+						if (candidate==BLOCK_MAGIC || candidate==END_MAGIC)
+							return ((this.bufferOffset+index)<<3)+offset;
+					}
+				}
+				
+				// check the last bytes one bit at a time
+				bitPosition = Math.max(bitPosition, (this.bufferOffset+Math.max(0, limit))<<3);
+				value = read48(bitPosition);
+				if (value<0L)
+					return -1L;
+				if (value==BLOCK_MAGIC || value==END_MAGIC)
+					return bitPosition;
+				bitPosition++;
+			}
+		}
+		
+		/**
+		 * @return the position of the first block of the stream at the byte position, or -1 at the end of the file
+		 */
+		private long readStreamHeader(long bytePosition) throws IOException
+		{
+			long position = bytePosition<<3;
+			while (true)
+			{
+				long value = read48(position);
+				if (value<0L)
+					return -1L;
+				
+				if ((value>>>24)!=0x425A68L)
+					throw new IOException("Invalid bzip2 stream header.");
+				
+				position += 32;
+				long magic = read48(position);
+				if (magic==BLOCK_MAGIC)
+					return position;
+				if (magic!=END_MAGIC)
+					throw new IOException("Invalid bzip2 block.");
+				
+				// an empty stream, skip the end of stream and the combined CRC
+				position = (position+48+32+7) & ~7L;
+			}
+		}
+		
+		@Override
+		byte[] nextUnit() throws IOException
+		{
+			if (this.blockStart<0L)
+			{
+				if (this.endOfFile && this.bufferLength==0)
+					return null;
+				
+				this.blockStart = readStreamHeader(this.bufferOffset);
+				if (this.blockStart<0L)
+					return null;
+			}
+			
+			long blockEnd = findMagic(this.blockStart+48);
+			if (blockEnd<0L)
+				throw new EOFException("Truncated bzip2 file.");
+			
+			byte[] unit = wrapBlock(this.blockStart, blockEnd);
+			
+			if (read48(blockEnd)==BLOCK_MAGIC)
+				this.blockStart = blockEnd;
+			else
+			{
+				// skip the end of stream magic and the combined CRC, the next stream starts at a byte boundary
+				long nextStream = (blockEnd+48+32+7)>>>3;
+				this.blockStart = -1L;
+				if (read48(nextStream<<3)<0L)
+				{
+					this.endOfFile = true;
+					this.bufferLength = 0;
+					return unit;
+				}
+				this.blockStart = readStreamHeader(nextStream);
+			}
+			
+			return unit;
+		}
+		
+		/**
+		 * @return a bzip2 stream of the single block, whose combined CRC is the CRC of the block
+		 */
+		private byte[] wrapBlock(long start, long end)
+		{
+			long numBits = end-start;
+			byte[] unit = new byte[(int)((4*8+numBits+48+32+7)>>>3)];
+			unit[0] = 'B';
+			unit[1] = 'Z';
+			unit[2] = 'h';
+			unit[3] = '9';
+			
+			// the block, including its magic and CRC
+			int index = (int)((start>>>3)-this.bufferOffset);
+			int shift = (int)(start & 7L);
+			int output = 4;
+			long remaining = numBits;
+			while (remaining>=8)
+			{
+				int value = (this.buffer[index]<<shift) | ((this.buffer[index+1] & 0xFF)>>>(8-shift));
+				unit[output++] = (byte)value;
+				index++;
+				remaining -= 8;
+			}
+			
+			long bits = 0L;
+			int numPending = 0;
+			if (remaining>0)
+			{
+				int value = ((this.buffer[index]<<shift) | (index+1<this.bufferLength ? (this.buffer[index+1] & 0xFF)>>>(8-shift) : 0)) & 0xFF;
+				bits = value>>>(8-remaining);
+				numPending = (int)remaining;
+			}
+			
+			// the end of stream magic and the CRC of the block, which follows the block magic
+			int blockCrc = (unit[10] & 0xFF)<<24 | (unit[11] & 0xFF)<<16 | (unit[12] & 0xFF)<<8 | (unit[13] & 0xFF);
+			long[] values = { END_MAGIC>>>24, END_MAGIC & 0xFFFFFFL, blockCrc & 0xFFFFFFFFL };
+			int[] widths = { 24, 24, 32 };
+			for (int field = 0; field < values.length; field++)
+			{
+				bits = (bits<<widths[field]) | values[field];
+				numPending += widths[field];
+				while (numPending>=8)
+				{
+					unit[output++] = (byte)(bits>>>(numPending-8));
+					numPending -= 8;
+				}
+			}
+			if (numPending>0)
+				unit[output++] = (byte)(bits<<(8-numPending));
+			
+			return unit;
+		}
+	}
+	
+	/**
+	 * Decompresses sequentially in the producer thread, the units are already decoded.
+	 */
+	private final static class SequentialSplitter extends Splitter
+	{
+		private final InputStream input;
+		
+		SequentialSplitter(InputStream input)
+		{
+			this.input = input;
+		}
+		
+		@Override
+		void close() throws IOException
+		{
+			this.input.close();
+		}
+		
+		@Override
+		byte[] decode(byte[] unit)
+		{
+			return unit;
+		}
+		
+		@Override
+		byte[] nextUnit() throws IOException
+		{
+			byte[] unit = new byte[UNIT_SIZE];
+			int size = 0;
+			int count;
+			while (size<UNIT_SIZE && (count = this.input.read(unit, size, UNIT_SIZE-size))>=0)
+				size += count;
+			
+			if (size==0)
+				return null;
+			
+			return size==UNIT_SIZE ? unit : Arrays.copyOf(unit, size);
+		}
+	}
+	
+	private byte[] current;
+	private int currentPosition;
+	private long delivered;
+	private InputStream fallback;
+	private boolean finished;
+	private final String file;
+	private final ExecutorService pool;
+	private final Thread producer;
+	private final ArrayBlockingQueue<Future<byte[]>> queue;
+	private final Splitter splitter;
+	
+	private final static CompletableFuture<byte[]> END = CompletableFuture.completedFuture(null);
+	private final static int UNIT_SIZE = 1<<20;
+	
+	/**
+	 * @return the decompressed bytes of the file, without splitting it into units
+	 */
+	public static InputStream openSequential(String file) throws IOException
+	{
+		InputStream input = new BufferedInputStream(new FileInputStream(file), Utils.BUFFER_BYTE_SIZE);
+		if (file.endsWith("bz2"))
+			return new BZip2CompressorInputStream(input, true);
+
+		return new GzipCompressorInputStream(input, true);
+	}
+	
+	/**
+	 * @param numThreads
+	 *            the number of threads that decompress the units
+	 */
+	public ParallelDecompressionInputStream(String file, int numThreads) throws IOException
+	{
+		this.file = file;
+		this.delivered = 0L;
+		this.current = new byte[0];
+		this.currentPosition = 0;
+		this.fallback = null;
+		this.finished = false;
+		
+		InputStream input = new BufferedInputStream(new FileInputStream(file), Utils.BUFFER_BYTE_SIZE);
+		if (file.endsWith("bz2"))
+			this.splitter = new Bzip2Splitter(input);
+		else
+		{
+			input.mark(64);
+			byte[] header = new byte[64];
+			int length = 0;
+			int count;
+			while (length<header.length && (count = input.read(header, length, header.length-length))>=0)
+				length += count;
+			input.reset();
+			
+			if (BgzfSplitter.isBgzf(header, length))
+				this.splitter = new BgzfSplitter(input);
+			else
+			{
+				this.splitter = new SequentialSplitter(new GzipCompressorInputStream(input, true));
+				numThreads = 1;
+			}
+		}
+		
+		this.queue = new ArrayBlockingQueue<>(Math.max(2, 2*numThreads));
+		this.pool = Executors.newFixedThreadPool(numThreads, runnable ->
+		{
+			Thread thread = new Thread(runnable, "decompression");
+			thread.setDaemon(true);
+			return thread;
+		});
+		
+		this.producer = new Thread(this::produce, "decompression-reader");
+		this.producer.setDaemon(true);
+		this.producer.start();
+	}
+	
+	@Override
+	public void close() throws IOException
+	{
+		this.producer.interrupt();
+		this.pool.shutdownNow();
+		this.splitter.close();
+		if (this.fallback!=null)
+			this.fallback.close();
+	}
+	
+	/**
+	 * Continues from the delivered bytes with the sequential decompressor.
+	 */
+	private void openFallback() throws IOException
+	{
+		this.producer.interrupt();
+		this.pool.shutdownNow();
+		
+		this.fallback = openSequential(this.file);
+		long skipped = 0L;
+		while (skipped<this.delivered)
+		{
+			long count = this.fallback.skip(this.delivered-skipped);
+			if (count<=0L)
+				throw new EOFException("Compressed file "+this.file+" is truncated.");
+			skipped += count;
+		}
+	}
+	
+	private void produce()
+	{
+		try
+		{
+			byte[] unit;
+			while ((unit = this.splitter.nextUnit())!=null)
+			{
+				final byte[] finalUnit = unit;
+				this.queue.put(this.pool.submit(() -> this.splitter.decode(finalUnit)));
+			}
+			this.queue.put(END);
+		}
+		catch (InterruptedException e)
+		{
+			// closed by the reader
+		}
+		catch (Exception e)
+		{
+			CompletableFuture<byte[]> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			try
+			{
+				this.queue.put(failed);
+			}
+			catch (InterruptedException e1)
+			{
+				// closed by the reader
+			}
+		}
+	}
+	
+	@Override
+	public int read() throws IOException
+	{
+		byte[] single = new byte[1];
+		int count = read(single, 0, 1);
+		
+		return count<0 ? -1 : single[0] & 0xFF;
+	}
+	
+	@Override
+	public int read(byte[] bytes, int offset, int length) throws IOException
+	{
+		if (length==0)
+			return 0;
+		
+		while (this.fallback==null && this.currentPosition>=this.current.length)
+		{
+			if (this.finished)
+				return -1;
+			
+			try
+			{
+				byte[] next = this.queue.take().get();
+				if (next==null)
+				{
+					this.finished = true;
+					return -1;
+				}
+				this.current = next;
+				this.currentPosition = 0;
+			}
+			catch (InterruptedException e)
+			{
+				throw new IOException(e);
+			}
+			catch (ExecutionException e)
+			{
+				openFallback();
+			}
+		}
+		
+		if (this.fallback!=null)
+		{
+			int count = this.fallback.read(bytes, offset, length);
+			if (count>0)
+				this.delivered += count;
+			return count;
+		}
+		
+		int count = Math.min(length, this.current.length-this.currentPosition);
+		System.arraycopy(this.current, this.currentPosition, bytes, offset, count);
+		this.currentPosition += count;
+		this.delivered += count;
+		
+		return count;
+	}
+}
@@ -0,0 +1,144 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded queue between two stages of a pipeline. Producers block when the queue is full, and consumers get null
+ * once every producer is done and the queue is drained. The time that producers and consumers wait, and the depth of
+ * the queue at every take, are recorded, so a queue that is mostly full points to a slow consuming stage, and one that
+ * is mostly empty to a slow producing stage.
+ */
+public final class StageQueue<T>
+{
+	private volatile RuntimeException failure;
+	private final String name;
+	private final AtomicLong consumerWaitTime;
+	private final AtomicLong depthSum;
+	private final AtomicInteger producers;
+	private final AtomicLong producerWaitTime;
+	private final ArrayBlockingQueue<T> queue;
+	private final AtomicLong taken;
+	
+	public StageQueue(String name, int capacity, int producers)
+	{
+		this.name = name;
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.producers = new AtomicInteger(producers);
+		this.consumerWaitTime = new AtomicLong();
+		this.depthSum = new AtomicLong();
+		this.producerWaitTime = new AtomicLong();
+		this.taken = new AtomicLong();
+	}
+	
+	public int capacity()
+	{
+		return this.queue.size()+this.queue.remainingCapacity();
+	}
+	
+	/**
+	 * Stops the queue, the consumers get the exception instead of the next element.
+	 */
+	public void fail(RuntimeException e)
+	{
+		this.failure = e;
+		this.producers.set(0);
+	}
+	
+	public boolean isFinished()
+	{
+		return this.producers.get()<=0 && this.queue.isEmpty();
+	}
+	
+	/**
+	 * Signals that one of the producers added all its elements.
+	 */
+	public void producerDone()
+	{
+		this.producers.decrementAndGet();
+	}
+	
+	public void put(T element) throws InterruptedException
+	{
+		if (this.queue.offer(element))
+			return;
+		
+		long startTime = System.nanoTime();
+		this.queue.put(element);
+		this.producerWaitTime.addAndGet(System.nanoTime()-startTime);
+	}
+	
+	/**
+	 * @return the next element, or null once all the producers are done and the queue is empty
+	 */
+	public T take() throws InterruptedException
+	{
+		T element = this.queue.poll();
+		if (element==null)
+		{
+			long startTime = System.nanoTime();
+			
+			// wake up every so often to see if the producers are done
+			while ((element = this.queue.poll(10L, TimeUnit.MILLISECONDS))==null)
+			{
+				if (this.failure!=null)
+					throw this.failure;
+				if (this.producers.get()<=0 && this.queue.isEmpty())
+					break;
+			}
+			
+			this.consumerWaitTime.addAndGet(System.nanoTime()-startTime);
+		}
+		
+		if (this.failure!=null)
+			throw this.failure;
+		
+		if (element!=null)
+		{
+			this.depthSum.addAndGet(this.queue.size()+1);
+			this.taken.incrementAndGet();
+		}
+		
+		return element;
+	}
+	
+	@Override
+	public String toString()
+	{
+		long count = this.taken.get();
+		double meanDepth = count==0L ? 0.0 : (double)this.depthSum.get()/(double)count;
+		
+		return String.format("%s queue: %d elements, mean depth %.1f of %d, producers waited %.2fs, consumers waited %.2fs", 
+				this.name, count, meanDepth, capacity(), this.producerWaitTime.get()*1.0e-9, this.consumerWaitTime.get()*1.0e-9);
+	}
+}
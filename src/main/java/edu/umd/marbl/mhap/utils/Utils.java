@@ -39,12 +39,10 @@ import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.FileReader;
 
-import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
-import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
-
 import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
 
 public final class Utils
@@ -225,12 +223,22 @@ public final class Utils
 		return snew;
 	}
 
+	/**
+	 * @return the bytes of the file, decompressed if the file ends in bz2 or gz
+	 */
+	public final static InputStream getInputStream(String fileName) throws IOException
+	{
+		if (fileName.endsWith("bz2") || fileName.endsWith("gz"))
+			return new ParallelDecompressionInputStream(fileName, Runtime.getRuntime().availableProcessors());
+		
+		return new BufferedInputStream(new FileInputStream(fileName), BUFFER_BYTE_SIZE);
+	}
+
 	public final static BufferedReader getFile(String fileName, String[] postfix) throws IOException
 	{
 		if (fileName.endsWith("bz2"))
 		{
-			BZip2CompressorInputStream bzIn = new BZip2CompressorInputStream(new BufferedInputStream(new FileInputStream(fileName), BUFFER_BYTE_SIZE));
-			return new BufferedReader(new InputStreamReader(bzIn));
+			return new BufferedReader(new InputStreamReader(getInputStream(fileName)));
 			
 			// open file as a pipe
 			//System.err.println("Running command " + "bzip2 -dc " + new File(fileName).getAbsolutePath() + " |");
@@ -240,8 +248,7 @@ public final class Utils
 		}
 		else if (fileName.endsWith("gz"))
 		{
-			GzipCompressorInputStream bzIn = new GzipCompressorInputStream(new BufferedInputStream(new FileInputStream(fileName), BUFFER_BYTE_SIZE));
-			return new BufferedReader(new InputStreamReader(bzIn));
+			return new BufferedReader(new InputStreamReader(getInputStream(fileName)));
 			
 			// open file as a pipe
 			//System.err.println("Runnning comand " + "gzip -dc " + new File(fileName).getAbsolutePath() + " |");
@@ -0,0 +1,105 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.main;
+
+import java.io.IOException;
+
+import edu.umd.marbl.mhap.impl.MinHashSearch;
+import edu.umd.marbl.mhap.impl.SequenceSketchStreamer;
+import edu.umd.marbl.mhap.sketch.MinHashMode;
+
+/**
+ * Reports the time to store the sketches of a FASTA or dat file and build the MinHash index, for 1, 2, 4, ... threads
+ * up to a maximum. The reads are sketched before the timing starts, so only the index construction is measured.
+ */
+public final class IndexBuildBenchmark
+{
+	private static final int NUM_HASHES = 512;
+	private static final int NUM_ROUNDS = 3;
+
+	private final String file;
+	private final boolean useCompactIndex;
+	
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length < 1)
+		{
+			System.err.println("Usage: IndexBuildBenchmark <fasta/dat file> [max threads, default 64] [compact index, default false]");
+			System.exit(1);
+		}
+		
+		int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		boolean useCompactIndex = args.length > 2 ? Boolean.parseBoolean(args[2]) : false;
+		
+		IndexBuildBenchmark benchmark = new IndexBuildBenchmark(args[0], useCompactIndex);
+		
+		for (int numThreads = 1; numThreads <= maxThreads; numThreads *= 2)
+			benchmark.run(numThreads);
+	}
+	
+	public IndexBuildBenchmark(String file, boolean useCompactIndex)
+	{
+		this.file = file;
+		this.useCompactIndex = useCompactIndex;
+	}
+	
+	private SequenceSketchStreamer getStreamer(int numThreads) throws IOException
+	{
+		SequenceSketchStreamer data;
+		if (this.file.endsWith(".dat"))
+			data = new SequenceSketchStreamer(this.file, 0, 0);
+		else
+			data = new SequenceSketchStreamer(this.file, 0, 16, NUM_HASHES, 12, 1536, null, true, 0.9, MinHashMode.CLASSIC, 0);
+		
+		// sketch all the reads up front, so the index build does not wait on the sketching
+		data.setPipeline(1, numThreads, SequenceSketchStreamer.DEFAULT_QUEUE_SIZE);
+		data.enqueueFullFile(false);
+		
+		return data;
+	}
+	
+	public void run(int numThreads) throws IOException
+	{
+		double bestTime = Double.MAX_VALUE;
+		int numSequences = 0;
+		
+		// the best of several rounds, the first is before the JIT compiled the build
+		for (int round = 0; round < NUM_ROUNDS; round++)
+		{
+			SequenceSketchStreamer data = getStreamer(numThreads);
+			
+			MinHashSearch search = new MinHashSearch(data, NUM_HASHES, 3, numThreads, false, 0, 0.2, 0.78, this.useCompactIndex);
+			
+			bestTime = Math.min(bestTime, search.getIndexBuildTime());
+			numSequences = search.size();
+		}
+		
+		System.out.println(String.format("%d threads: %.3f s to index %d sketches", numThreads, bestTime, numSequences));
+	}
+}
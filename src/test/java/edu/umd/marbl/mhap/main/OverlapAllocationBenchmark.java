@@ -0,0 +1,130 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.main;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+
+import edu.umd.marbl.mhap.impl.FastaData;
+import edu.umd.marbl.mhap.impl.OverlapInfo;
+import edu.umd.marbl.mhap.impl.Sequence;
+import edu.umd.marbl.mhap.sketch.BottomOverlapSketch;
+import edu.umd.marbl.mhap.sketch.OverlapWorkspace;
+
+/**
+ * Reports the bytes allocated and the time per comparison for scoring the overlaps of every read in a FASTA file
+ * with the forward and reverse compliment of the following reads, with a new OverlapWorkspace for every comparison,
+ * with a single reused OverlapWorkspace, and with the reused OverlapWorkspace prepared once for every read.
+ */
+public final class OverlapAllocationBenchmark
+{
+	private static final int NUM_ROUNDS = 5;
+
+	private final ArrayList<BottomOverlapSketch> forwardSketches;
+	private final ArrayList<BottomOverlapSketch> reverseSketches;
+	private final com.sun.management.ThreadMXBean threadBean;
+	private final int window;
+	
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length < 1)
+		{
+			System.err.println("Usage: OverlapAllocationBenchmark <fasta file> [number of following reads compared, default 50]");
+			System.exit(1);
+		}
+		
+		int window = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		
+		OverlapAllocationBenchmark benchmark = new OverlapAllocationBenchmark(args[0], window);
+		
+		// later rounds are after the JIT compiled the scoring code
+		for (int round = 0; round < NUM_ROUNDS; round++)
+		{
+			benchmark.run("new workspace per comparison", false, false);
+			benchmark.run("reused workspace", true, false);
+			benchmark.run("reused workspace, prepared query", true, true);
+		}
+	}
+	
+	public OverlapAllocationBenchmark(String file, int window) throws Exception
+	{
+		this.threadBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		if (!this.threadBean.isThreadAllocatedMemorySupported())
+			throw new UnsupportedOperationException("This JVM does not report the allocated bytes of a thread.");
+		
+		this.window = window;
+		this.forwardSketches = new ArrayList<>();
+		this.reverseSketches = new ArrayList<>();
+		
+		FastaData data = new FastaData(file, 0);
+		Sequence seq;
+		while ((seq = data.dequeue()) != null)
+		{
+			this.forwardSketches.add(new BottomOverlapSketch(seq.getSquenceString(), 12, 1536, false));
+			this.reverseSketches.add(new BottomOverlapSketch(seq.getReverseCompliment().getSquenceString(), 12, 1536, false));
+		}
+	}
+	
+	public void run(String label, boolean reuseWorkspace, boolean prepareQuery)
+	{
+		long threadId = Thread.currentThread().getId();
+		OverlapWorkspace workspace = new OverlapWorkspace();
+		
+		long numComparisons = 0;
+		long numOverlaps = 0;
+		long startBytes = this.threadBean.getThreadAllocatedBytes(threadId);
+		long startTime = System.nanoTime();
+		for (int iter = 0; iter < this.forwardSketches.size(); iter++)
+		{
+			BottomOverlapSketch sketch = this.forwardSketches.get(iter);
+			if (prepareQuery)
+				workspace.prepareQuery(sketch);
+			
+			int last = Math.min(this.forwardSketches.size(), iter+1+this.window);
+			for (int other = iter+1; other < last; other++)
+			{
+				OverlapInfo fwd = reuseWorkspace ? sketch.getOverlapInfo(this.forwardSketches.get(other), 0.2, workspace)
+						: sketch.getOverlapInfo(this.forwardSketches.get(other), 0.2);
+				OverlapInfo rev = reuseWorkspace ? sketch.getOverlapInfo(this.reverseSketches.get(other), 0.2, workspace)
+						: sketch.getOverlapInfo(this.reverseSketches.get(other), 0.2);
+				
+				numComparisons += 2;
+				if (fwd!=OverlapInfo.EMPTY)
+					numOverlaps++;
+				if (rev!=OverlapInfo.EMPTY)
+					numOverlaps++;
+			}
+		}
+		long time = System.nanoTime() - startTime;
+		long bytes = this.threadBean.getThreadAllocatedBytes(threadId) - startBytes;
+		
+		System.out.println(String.format("%s: %d bytes/comparison, %.2f us/comparison, %d of %d comparisons scored", label, bytes / Math.max(1, numComparisons),
+				(double)time * 1.0e-3 / (double)Math.max(1, numComparisons), numOverlaps, numComparisons));
+	}
+}
@@ -0,0 +1,116 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.main;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+
+import edu.umd.marbl.mhap.impl.FastaData;
+import edu.umd.marbl.mhap.impl.Sequence;
+import edu.umd.marbl.mhap.impl.SequenceSketch;
+import edu.umd.marbl.mhap.sketch.MinHashMode;
+import edu.umd.marbl.mhap.sketch.MultiKmerSketcher;
+import edu.umd.marbl.mhap.sketch.SketchWorkspace;
+import edu.umd.marbl.mhap.sketch.ZeroNGramsFoundException;
+
+/**
+ * Reports the bytes allocated and the time per read for sketching both strands of the reads in a FASTA file, with a
+ * new SketchWorkspace and reverse compliment string for every read, and with a single reused SketchWorkspace.
+ */
+public final class SketchAllocationBenchmark
+{
+	private static final int NUM_ROUNDS = 5;
+
+	private final com.sun.management.ThreadMXBean threadBean;
+	private final ArrayList<Sequence> sequences;
+	private final MultiKmerSketcher sketcher;
+	
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length < 1)
+		{
+			System.err.println("Usage: SketchAllocationBenchmark <fasta file> [minhash mode, default 0] [repeat weight, default 0.9]");
+			System.exit(1);
+		}
+		
+		MinHashMode mode = args.length > 1 ? MinHashMode.fromCode(Integer.parseInt(args[1])) : MinHashMode.CLASSIC;
+		double repeatWeight = args.length > 2 ? Double.parseDouble(args[2]) : 0.9;
+		
+		SketchAllocationBenchmark benchmark = new SketchAllocationBenchmark(args[0], new MultiKmerSketcher(16, 512, 12, 1536, null, repeatWeight, mode));
+		
+		// later rounds are after the JIT compiled the sketching code
+		for (int round = 0; round < NUM_ROUNDS; round++)
+		{
+			benchmark.run("new workspace per read", false);
+			benchmark.run("reused workspace", true);
+		}
+	}
+	
+	public SketchAllocationBenchmark(String file, MultiKmerSketcher sketcher) throws Exception
+	{
+		this.threadBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		if (!this.threadBean.isThreadAllocatedMemorySupported())
+			throw new UnsupportedOperationException("This JVM does not report the allocated bytes of a thread.");
+		
+		this.sketcher = sketcher;
+		this.sequences = new ArrayList<>();
+		
+		FastaData data = new FastaData(file, 0);
+		Sequence seq;
+		while ((seq = data.dequeue()) != null)
+			this.sequences.add(seq);
+	}
+	
+	public void run(String label, boolean reuseWorkspace) throws ZeroNGramsFoundException
+	{
+		long threadId = Thread.currentThread().getId();
+		SketchWorkspace workspace = new SketchWorkspace();
+		
+		long startBytes = this.threadBean.getThreadAllocatedBytes(threadId);
+		long startTime = System.nanoTime();
+		for (Sequence seq : this.sequences)
+		{
+			if (reuseWorkspace)
+			{
+				new SequenceSketch(seq, false, this.sketcher, workspace);
+				new SequenceSketch(seq, true, this.sketcher, workspace);
+			}
+			else
+			{
+				new SequenceSketch(seq, this.sketcher);
+				new SequenceSketch(seq.getReverseCompliment(), this.sketcher);
+			}
+		}
+		long time = System.nanoTime() - startTime;
+		long bytes = this.threadBean.getThreadAllocatedBytes(threadId) - startBytes;
+		
+		System.out.println(String.format("%s: %d bytes/read, %.3f ms/read", label, bytes / this.sequences.size(),
+				(double)time * 1.0e-6 / (double)this.sequences.size()));
+	}
+}